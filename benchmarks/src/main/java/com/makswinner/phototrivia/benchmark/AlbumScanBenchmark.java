@@ -0,0 +1,76 @@
+package com.makswinner.phototrivia.benchmark;
+
+import com.makswinner.phototrivia.service.AlbumCatalog;
+import com.makswinner.phototrivia.service.AlbumIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Album lookup as done by <code>findAlbumPhotos</code>: the cold path scans the album directory,
+ * the warm path is served by the catalog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AlbumScanBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    private int albums;
+
+    @Param({"10", "1000", "100000"})
+    private int photos;
+
+    private SyntheticAlbums tree;
+    private Gallery gallery;
+    private AlbumCatalog albumCatalog;
+    private String album;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tree = SyntheticAlbums.create(albums, photos);
+        gallery = new Gallery(tree);
+        albumCatalog = gallery.getAlbumCatalog();
+        album = tree.getAlbum();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        gallery.close();
+        tree.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class ColdCatalog {
+        @Setup(Level.Invocation)
+        public void reset(AlbumScanBenchmark benchmark) {
+            benchmark.albumCatalog.reset();
+        }
+    }
+
+    @Benchmark
+    public AlbumIndex findAlbumPhotosCold(ColdCatalog coldCatalog) {
+        return albumCatalog.getAlbum(album);
+    }
+
+    @Benchmark
+    public AlbumIndex findAlbumPhotosWarm() {
+        return albumCatalog.getAlbum(album);
+    }
+}
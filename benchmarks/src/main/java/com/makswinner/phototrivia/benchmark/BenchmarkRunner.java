@@ -0,0 +1,25 @@
+package com.makswinner.phototrivia.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH entry point taking the usual JMH arguments, always with the GC profiler so that results include
+ * allocation rate and bytes allocated per operation.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        try {
+            new Runner(new OptionsBuilder()
+                    .parent(new CommandLineOptions(args))
+                    .addProfiler(GCProfiler.class)
+                    .build()).run();
+        } catch (RunnerException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.makswinner.phototrivia.benchmark;
+
+import com.makswinner.phototrivia.service.AlbumCatalog;
+import com.makswinner.phototrivia.service.AssetService;
+import com.makswinner.phototrivia.service.AsyncResponseWriter;
+import com.makswinner.phototrivia.service.MediaExecutor;
+import com.makswinner.phototrivia.service.MediaTypes;
+import com.makswinner.phototrivia.service.MetadataService;
+import com.makswinner.phototrivia.service.PageCache;
+import com.makswinner.phototrivia.service.Metrics;
+import com.makswinner.phototrivia.service.RenderingService;
+import com.makswinner.phototrivia.service.SortService;
+import com.makswinner.phototrivia.service.VariantService;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.makswinner.phototrivia.config.SecurityConfig.ROLE_ADMIN;
+
+/**
+ * The gallery services wired by Spring without the web layer, over a synthetic album tree,
+ * with an admin logged in for every thread.
+ */
+public final class Gallery implements AutoCloseable {
+    private final AnnotationConfigApplicationContext context;
+
+    public Gallery(SyntheticAlbums albums) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("albums.path", albums.getAlbumsPath().toString());
+        properties.put("albums.watch", "false");
+        properties.put("data.path", albums.getRoot().resolve("data").toString());
+        properties.put("extensions.ignore", "avi,dat,mts,vob,mod");
+        properties.put("extensions.video", "mov,mp4");
+        properties.put("rendering.title", "photoTrivia");
+        properties.put("rendering.bgcolor", "#222222");
+        properties.put("rendering.linkcolor", "#CCFFFF");
+        properties.put("rendering.vlinkcolor", "#00C0C0");
+        properties.put("metadata.cache.entries", "20000");
+        properties.put("media.workers", "2");
+        properties.put("media.queue.size", "32");
+        properties.put("media.retry.after.seconds", "2");
+        properties.put("pages.cache.size.kb", "2048");
+        properties.put("prefetch.hints", "true");
+        properties.put("albums.page.size", "0");
+        properties.put("variants.widths", "640,1280");
+        properties.put("variants.path", albums.getRoot().resolve("data").resolve("variants").toString());
+        properties.put("variants.cache.size.mb", "16");
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        context.register(AlbumCatalog.class, MediaExecutor.class, MetadataService.class, PageCache.class,
+                RenderingService.class, Metrics.class, VariantService.class, SortService.class,
+                AssetService.class, AsyncResponseWriter.class, MediaTypes.class);
+        context.refresh();
+
+        User admin = new User("admin", "", Collections.singletonList(new SimpleGrantedAuthority(ROLE_ADMIN)));
+        SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(admin, null, admin.getAuthorities()));
+    }
+
+    public RenderingService getRenderingService() {
+        return context.getBean(RenderingService.class);
+    }
+
+    public AlbumCatalog getAlbumCatalog() {
+        return context.getBean(AlbumCatalog.class);
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+}
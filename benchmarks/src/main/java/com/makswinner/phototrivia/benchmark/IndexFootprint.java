@@ -0,0 +1,85 @@
+package com.makswinner.phototrivia.benchmark;
+
+import com.makswinner.phototrivia.service.AlbumIndex;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Heap retained by album indexes of 100k photos, measured as the used heap after full collections with and
+ * without the indexes reachable. Run with a fixed heap and no other load, e.g.
+ * <code>java -Xms256m -Xmx256m -cp benchmarks.jar com.makswinner.phototrivia.benchmark.IndexFootprint</code>.
+ */
+public class IndexFootprint {
+    private static final int PHOTOS = 100_000;
+    private static final int COPIES = 10;
+
+    public static void main(String[] args) {
+        List<String> camera = new ArrayList<>(PHOTOS);
+        List<String> mixed = new ArrayList<>(PHOTOS);
+        Random random = new Random(42);
+        for (int i = 0; i < PHOTOS; i++) {
+            camera.add(String.format("IMG_%d%02d%02d_%06d.jpg",
+                    2015 + i / 20_000, 1 + i / 2_000 % 12, 1 + i / 100 % 28, i));
+            mixed.add(getMixedName(random, i));
+        }
+        for (boolean prefixCompressed : new boolean[]{false, true}) {
+            System.out.printf("camera names, prefix compression %-5s: %,d bytes per %,d photos%n",
+                    prefixCompressed, measure(camera, prefixCompressed), PHOTOS);
+            System.out.printf("mixed names,  prefix compression %-5s: %,d bytes per %,d photos%n",
+                    prefixCompressed, measure(mixed, prefixCompressed), PHOTOS);
+        }
+    }
+
+    private static String getMixedName(Random random, int i) {
+        switch (i % 4) {
+            case 0:
+                return String.format("DSC%05d.JPG", i);
+            case 1:
+                return String.format("Holiday %d - beach (%d).jpg", 2000 + random.nextInt(20), i);
+            case 2:
+                return String.format("VID_%08d_%06d.mp4", 20190101 + random.nextInt(1000), i);
+            default:
+                return String.format("Фото %d.jpeg", i);
+        }
+    }
+
+    private static long measure(List<String> names, boolean prefixCompressed) {
+        AlbumIndex[] indexes = new AlbumIndex[COPIES];
+        long before = usedHeap();
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = AlbumIndex.of(copy(names), prefixCompressed);
+        }
+        long after = usedHeap();
+        long size = 0;
+        for (AlbumIndex index : indexes) {
+            size += index.size();
+        }
+        if (size != (long) COPIES * names.size()) {
+            throw new IllegalStateException("Duplicate names");
+        }
+        return (after - before) / COPIES;
+    }
+
+    /**
+     * @return names as a scan returns them, not shared with other indexes
+     */
+    private static List<String> copy(List<String> names) {
+        List<String> copy = new ArrayList<>(names.size());
+        for (String name : names) {
+            copy.add(new String(name.toCharArray()));
+        }
+        return copy;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,85 @@
+package com.makswinner.phototrivia.benchmark;
+
+import com.makswinner.phototrivia.service.RenderingService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering and navigation over an album already in the catalog, i.e. the per-request cost without page caching.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RenderingBenchmark {
+    private static final String URL_ALL_ALBUMS = "/";
+
+    @Param({"10", "1000", "10000"})
+    private int albums;
+
+    @Param({"10", "1000", "100000"})
+    private int photos;
+
+    private SyntheticAlbums tree;
+    private Gallery gallery;
+    private RenderingService renderingService;
+    private String album;
+    private String photo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tree = SyntheticAlbums.create(albums, photos);
+        gallery = new Gallery(tree);
+        renderingService = gallery.getRenderingService();
+        album = tree.getAlbum();
+        photo = RenderingService.encode(tree.getMiddlePhoto());
+        renderingService.renderPhoto(album, photo, false, URL_ALL_ALBUMS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        gallery.close();
+        tree.delete();
+    }
+
+    @Benchmark
+    public String renderPhoto() {
+        return renderingService.renderPhoto(album, photo, false, URL_ALL_ALBUMS);
+    }
+
+    @Benchmark
+    public String renderAlbums() {
+        return renderingService.renderAlbums();
+    }
+
+    @Benchmark
+    public String renderAlbumPhotos() {
+        return renderingService.renderAlbumPhotos(album);
+    }
+
+    @Benchmark
+    public String findNextPhoto() {
+        return renderingService.findNextPhoto(album, photo);
+    }
+
+    @Benchmark
+    public String findPreviousPhoto() {
+        return renderingService.findPreviousPhoto(album, photo);
+    }
+}
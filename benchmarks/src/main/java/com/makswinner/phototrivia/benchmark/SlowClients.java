@@ -0,0 +1,165 @@
+package com.makswinner.phototrivia.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of a running gallery: opens many downloads of a large original that read only a little every second,
+ * like phones on a bad connection, and meanwhile measures how fast the albums page answers. With blocking writes
+ * every slow download holds a server thread, so once they outnumber the thread pool (200 for Jetty) the page
+ * times out; with <code>async.writes</code> it keeps answering. Compare, e.g.
+ * <pre>
+ * java -jar photoTrivia.jar --async.writes=false
+ * java -cp benchmarks.jar com.makswinner.phototrivia.benchmark.SlowClients \
+ *     http://localhost:8888 /photos/2019/IMG_0001.jpg admin:password 400 30
+ * </pre>
+ * and the same with <code>--async.writes=true</code>. The original should be a few megabytes, so that it does
+ * not fit into socket buffers.
+ */
+public class SlowClients {
+    private static final int RECEIVE_BUFFER = 4096;
+    private static final int READ_PER_SECOND = 1024;
+    private static final int PROBE_INTERVAL_MILLIS = 200;
+    private static final int PROBE_TIMEOUT_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: SlowClients <gallery url> <original path> <user:password> [clients] [seconds]");
+            System.exit(1);
+        }
+        URL gallery = new URL(args[0]);
+        String authorization = "Basic " + Base64.getEncoder()
+                .encodeToString(args[2].getBytes(StandardCharsets.UTF_8));
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 400;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+
+        List<SocketChannel> downloads = new ArrayList<>(clients);
+        try {
+            startDownloads(gallery, args[1], authorization, clients, downloads);
+            boolean[] answered = new boolean[downloads.size()];
+            Thread reader = new Thread(() -> readSlowly(downloads, answered), "slow-clients");
+            reader.setDaemon(true);
+            reader.start();
+
+            URL page = new URL(gallery, "/");
+            List<Long> latencies = new ArrayList<>();
+            int failures = 0;
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < end) {
+                long start = System.nanoTime();
+                if (probe(page, authorization)) {
+                    latencies.add(System.nanoTime() - start);
+                } else {
+                    failures++;
+                }
+                Thread.sleep(PROBE_INTERVAL_MILLIS);
+            }
+            reader.interrupt();
+            reader.join();
+            int answeredDownloads = 0;
+            for (boolean downloadAnswered : answered) {
+                answeredDownloads += downloadAnswered ? 1 : 0;
+            }
+            System.out.printf("slow downloads: %d opened, %d answered%n", downloads.size(), answeredDownloads);
+            report(latencies, failures);
+        } finally {
+            for (SocketChannel download : downloads) {
+                download.close();
+            }
+        }
+    }
+
+    private static void startDownloads(URL gallery, String original, String authorization, int clients,
+                                       List<SocketChannel> downloads) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(gallery.getHost(),
+                gallery.getPort() > 0 ? gallery.getPort() : gallery.getDefaultPort());
+        byte[] request = ("GET " + original + " HTTP/1.1\r\nHost: " + gallery.getAuthority()
+                + "\r\nAuthorization: " + authorization + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < clients; i++) {
+            SocketChannel download = SocketChannel.open();
+            downloads.add(download);
+            download.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+            download.connect(address);
+            download.write(ByteBuffer.wrap(request));
+            download.configureBlocking(false);
+        }
+    }
+
+    /**
+     * Reads at most {@link #READ_PER_SECOND} bytes of every download per second.
+     *
+     * @param answered set for downloads that received anything, i.e. that a server thread or write started on
+     */
+    private static void readSlowly(List<SocketChannel> downloads, boolean[] answered) {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_PER_SECOND);
+        while (true) {
+            for (int i = 0; i < downloads.size(); i++) {
+                buffer.clear();
+                try {
+                    if (downloads.get(i).read(buffer) > 0) {
+                        answered[i] = true;
+                    }
+                } catch (IOException e) {
+                    //silently swallow, the server closed it
+                }
+            }
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static boolean probe(URL page, String authorization) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) page.openConnection();
+            connection.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+            connection.setRequestProperty("Authorization", authorization);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return false;
+            }
+            try (InputStream input = connection.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                while (input.read(buffer) >= 0) {
+                    //read the whole page
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static void report(List<Long> latencies, int failures) {
+        System.out.printf("albums page: %d answered, %d failed or timed out after %d ms%n",
+                latencies.size(), failures, PROBE_TIMEOUT_MILLIS);
+        if (latencies.isEmpty()) {
+            return;
+        }
+        Collections.sort(latencies);
+        System.out.printf("albums page latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                latencies.get(latencies.size() / 2) / 1e6,
+                latencies.get(Math.min(latencies.size() - 1, latencies.size() * 99 / 100)) / 1e6,
+                latencies.get(latencies.size() - 1) / 1e6);
+    }
+}
@@ -0,0 +1,70 @@
+package com.makswinner.phototrivia.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Album tree generated into a temporary directory: <code>albums</code> album directories, the first of them
+ * holding <code>photos</code> empty photo files with camera-style names.
+ */
+public final class SyntheticAlbums {
+    public static final String ALBUMS_DIR = "photos";
+
+    private final Path root;
+    private final Path albumsPath;
+    private final String album;
+    private final int photos;
+
+    private SyntheticAlbums(Path root, String album, int photos) {
+        this.root = root;
+        this.albumsPath = root.resolve(ALBUMS_DIR);
+        this.album = album;
+        this.photos = photos;
+    }
+
+    public static SyntheticAlbums create(int albums, int photos) throws IOException {
+        SyntheticAlbums tree = new SyntheticAlbums(
+                Files.createTempDirectory("photoTrivia-benchmark"), getAlbumName(0), photos);
+        for (int i = 0; i < albums; i++) {
+            Files.createDirectories(tree.albumsPath.resolve(getAlbumName(i)));
+        }
+        Path album = tree.albumsPath.resolve(tree.album);
+        for (int i = 0; i < photos; i++) {
+            Files.createFile(album.resolve(tree.getPhoto(i)));
+        }
+        return tree;
+    }
+
+    private static String getAlbumName(int i) {
+        return String.format("%04d_Album%05d", 2000 + i % 20, i);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path getAlbumsPath() {
+        return albumsPath;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getPhoto(int i) {
+        return String.format("IMG_20190101_%06d.jpg", i);
+    }
+
+    public String getMiddlePhoto() {
+        return getPhoto(photos / 2);
+    }
+
+    public void delete() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.makswinner.phototrivia.config;
+
+import com.makswinner.phototrivia.service.Metrics;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers successful password checks for a while, so that clients sending basic credentials with every request
+ * pay for the (deliberately slow) BCrypt verification once per time-to-live instead of once per request.
+ * Entries are keyed by an HMAC of the stored hash and the presented password under a key that only lives in
+ * memory, so neither the password nor a reusable hash of it is kept. Failed checks are never cached and still
+ * cost a full verification.
+ */
+public class CachingPasswordEncoder implements PasswordEncoder {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_KEY_SIZE = 32;
+
+    private final PasswordEncoder encoder;
+    private final long timeToLiveNanos;
+    private final Metrics.CacheCounters cacheCounters;
+    private final Map<String, Long> verified;
+    private final ThreadLocal<Mac> macs;
+
+    public CachingPasswordEncoder(PasswordEncoder encoder, long timeToLiveSeconds, int maxEntries,
+                                  Metrics.CacheCounters cacheCounters) {
+        this.encoder = encoder;
+        this.timeToLiveNanos = TimeUnit.SECONDS.toNanos(timeToLiveSeconds);
+        this.cacheCounters = cacheCounters;
+        this.verified = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        byte[] key = new byte[MAC_KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        SecretKeySpec macKey = new SecretKeySpec(key, MAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(macKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Failed to initialize " + MAC_ALGORITHM, e);
+            }
+        });
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return encoder.encode(rawPassword);
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        if (rawPassword == null || encodedPassword == null || timeToLiveNanos <= 0) {
+            return encoder.matches(rawPassword, encodedPassword);
+        }
+        String key = getKey(rawPassword, encodedPassword);
+        long now = System.nanoTime();
+        synchronized (verified) {
+            Long expires = verified.get(key);
+            if (expires != null) {
+                if (expires - now > 0) {
+                    cacheCounters.hit();
+                    return true;
+                }
+                verified.remove(key);
+            }
+        }
+        cacheCounters.miss();
+        boolean matches = encoder.matches(rawPassword, encodedPassword);
+        if (matches) {
+            synchronized (verified) {
+                verified.put(key, now + timeToLiveNanos);
+            }
+        }
+        return matches;
+    }
+
+    private String getKey(CharSequence rawPassword, String encodedPassword) {
+        Mac mac = macs.get();
+        mac.update(encodedPassword.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        mac.update(rawPassword.toString().getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(mac.doFinal());
+    }
+}
@@ -1,12 +1,16 @@
 package com.makswinner.phototrivia.config;
 
+import com.makswinner.phototrivia.service.AlbumAccess;
+import com.makswinner.phototrivia.service.Metrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.authentication.configurers.provisioning.InMemoryUserDetailsManagerConfigurer;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 
@@ -22,35 +26,90 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
     private static String USER_ADMIN = "admin";
     public static String ROLE_ADMIN = "ROLE_ADMIN";
     public static String ROLE_GUEST = "ROLE_GUEST";
+    public static final String URL_METRICS = "/metrics";
+    private static final String AUTHENTICATION_SECONDS = "phototrivia_authentication_seconds";
+    private static final String AUTHENTICATION_SECONDS_HELP = "Password checks by result, cached ones included";
 
     @Value(value = "${admin.user.password}")
     private String adminPassword;
 
+    @Value(value = "${auth.cache.ttl.seconds}")
+    private long authCacheTtlSeconds;
+
+    @Value(value = "${auth.cache.entries}")
+    private int authCacheEntries;
+
     private List<GuestUsersConfig.UserAlbumAccess> guestUsers;
 
+    private Metrics metrics;
+
+    private PasswordEncoder passwordEncoder;
+
     @Autowired
-    public SecurityConfig(GuestUsersConfig guestUsersConfig) {
+    public SecurityConfig(GuestUsersConfig guestUsersConfig, Metrics metrics) {
         this.guestUsers = guestUsersConfig.getUsers();
+        this.metrics = metrics;
     }
 
-    private PasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
+    @Override
+    protected void configure(HttpSecurity http) throws Exception {
+        http.authorizeRequests()
+                .antMatchers(URL_METRICS).hasAuthority(ROLE_ADMIN)
+                .anyRequest().authenticated()
+                .and().formLogin()
+                .and().httpBasic();
+    }
 
     @Autowired
     public void configureGlobal(AuthenticationManagerBuilder auth) throws Exception {
+        passwordEncoder = new TimedPasswordEncoder(
+                new CachingPasswordEncoder(new BCryptPasswordEncoder(), authCacheTtlSeconds, authCacheEntries,
+                        metrics.cacheCounters("authentication")),
+                metrics.timer(AUTHENTICATION_SECONDS, AUTHENTICATION_SECONDS_HELP, "result=\"success\""),
+                metrics.timer(AUTHENTICATION_SECONDS, AUTHENTICATION_SECONDS_HELP, "result=\"failure\""));
         InMemoryUserDetailsManagerConfigurer<AuthenticationManagerBuilder> authConfigurer
                 = auth.inMemoryAuthentication();
         authConfigurer.passwordEncoder(passwordEncoder)
-                .withUser(USER_ADMIN).password(passwordEncoder.encode(adminPassword)).authorities(ROLE_ADMIN);
+                .withUser(USER_ADMIN).password(passwordEncoder.encode(adminPassword))
+                .authorities(new SimpleGrantedAuthority(ROLE_ADMIN), AlbumAccess.ALL);
 
         guestUsers.stream().forEach(guestUser -> {
             try {
                 authConfigurer
                         .withUser(guestUser.getName())
                         .password(passwordEncoder.encode(guestUser.getPassword()))
-                        .authorities(ROLE_GUEST, guestUser.getAlbums());
+                        .authorities(new SimpleGrantedAuthority(ROLE_GUEST), AlbumAccess.of(guestUser.getAlbums()));
             } catch (Exception e) {
                 e.printStackTrace();
             }
         });
     }
+
+    /**
+     * Times every password check, which is where BCrypt spends its deliberately expensive rounds.
+     */
+    private static class TimedPasswordEncoder implements PasswordEncoder {
+        private final PasswordEncoder encoder;
+        private final Metrics.Timer successTimer;
+        private final Metrics.Timer failureTimer;
+
+        private TimedPasswordEncoder(PasswordEncoder encoder, Metrics.Timer successTimer, Metrics.Timer failureTimer) {
+            this.encoder = encoder;
+            this.successTimer = successTimer;
+            this.failureTimer = failureTimer;
+        }
+
+        @Override
+        public String encode(CharSequence rawPassword) {
+            return encoder.encode(rawPassword);
+        }
+
+        @Override
+        public boolean matches(CharSequence rawPassword, String encodedPassword) {
+            long start = System.nanoTime();
+            boolean matches = encoder.matches(rawPassword, encodedPassword);
+            (matches ? successTimer : failureTimer).recordSince(start);
+            return matches;
+        }
+    }
 }
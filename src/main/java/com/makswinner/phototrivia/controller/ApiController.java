@@ -0,0 +1,63 @@
+package com.makswinner.phototrivia.controller;
+
+import com.makswinner.phototrivia.service.ApiService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Read-only JSON API, see {@link ApiService}.
+ */
+@RestController
+@RequestMapping("/api")
+public class ApiController {
+
+    @Autowired
+    private ApiService apiService;
+
+    @GetMapping("/albums")
+    public void albums(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        apiService.serveAlbums(request, response);
+    }
+
+    @GetMapping("/albums/{album}")
+    public void album(@PathVariable("album") String album,
+                      @RequestParam(value = "page", required = false, defaultValue = "1") int page,
+                      @RequestParam(value = "after", required = false) String after,
+                      @RequestParam(value = "sort", required = false) String sort,
+                      HttpServletRequest request,
+                      HttpServletResponse response) throws IOException {
+        apiService.serveAlbum(album, page, after, sort, request, response);
+    }
+
+    @GetMapping("/albums/{album}/{photo}")
+    public void photo(@PathVariable("album") String album,
+                      @PathVariable("photo") String photo,
+                      @RequestParam(value = "sort", required = false) String sort,
+                      HttpServletRequest request,
+                      HttpServletResponse response) throws IOException {
+        apiService.servePhoto(album, photo, sort, request, response);
+    }
+
+    /**
+     * <code>q</code> is searched in photo names, anywhere or with <code>prefix</code> at the start;
+     * <code>from</code> and <code>to</code> limit photos to dates as <code>yyyy</code>, <code>yyyy-MM</code> or
+     * <code>yyyy-MM-dd</code>, both inclusive. Only albums opened in this or an earlier run are searched, or all
+     * of them with <code>albums.index</code>; <code>pending</code> in the response counts albums not searched.
+     */
+    @GetMapping("/search")
+    public void search(@RequestParam(value = "q", required = false) String text,
+                       @RequestParam(value = "prefix", required = false) boolean prefix,
+                       @RequestParam(value = "from", required = false) String from,
+                       @RequestParam(value = "to", required = false) String to,
+                       HttpServletResponse response) throws IOException {
+        apiService.serveSearch(text, prefix, from, to, response);
+    }
+}
@@ -0,0 +1,27 @@
+package com.makswinner.phototrivia.controller;
+
+import com.makswinner.phototrivia.service.MediaExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Answers requests of every controller that found the media pool saturated with 503 and <code>Retry-After</code>.
+ */
+@ControllerAdvice
+public class BusyHandler {
+
+    @Autowired
+    private MediaExecutor mediaExecutor;
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    public void busy(HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(mediaExecutor.getRetryAfterSeconds()));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+}
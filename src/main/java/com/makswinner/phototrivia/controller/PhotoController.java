@@ -1,14 +1,33 @@
 package com.makswinner.phototrivia.controller;
 
+import com.makswinner.phototrivia.service.AssetService;
+import com.makswinner.phototrivia.service.AsyncResponseWriter;
+import com.makswinner.phototrivia.service.MediaService;
+import com.makswinner.phototrivia.service.Metrics;
+import com.makswinner.phototrivia.service.PrefetchService;
+import com.makswinner.phototrivia.service.RenderedPage;
 import com.makswinner.phototrivia.service.RenderingService;
+import com.makswinner.phototrivia.service.SortOrder;
+import com.makswinner.phototrivia.service.SortService;
+import com.makswinner.phototrivia.service.ThumbnailService;
+import com.makswinner.phototrivia.service.VariantService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import static com.makswinner.phototrivia.config.SecurityConfig.URL_METRICS;
 
 /**
  * @author Dr Maksym Chernolevskyi
@@ -16,42 +35,175 @@ import java.io.IOException;
 @RestController
 public class PhotoController {
     private static final String URL_ALL_ALBUMS = "/";
+    private static final String CONTENT_TYPE_HTML = "text/html;charset=UTF-8";
+    private static final String CONTENT_TYPE_METRICS = "text/plain;version=0.0.4;charset=UTF-8";
+    private static final String CACHE_CONTROL_VARIANT = "private, max-age=86400";
 
     @Autowired
     private RenderingService renderingService;
 
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    @Autowired
+    private VariantService variantService;
+
+    @Autowired
+    private MediaService mediaService;
+
+    @Autowired
+    private AsyncResponseWriter asyncResponseWriter;
+
+    @Autowired
+    private PrefetchService prefetchService;
+
+    @Autowired
+    private AssetService assetService;
+
+    @Autowired
+    private SortService sortService;
+
+    @Autowired
+    private Metrics metrics;
+
     @RequestMapping(URL_ALL_ALBUMS)
-    public String showAllAlbums() {
-        return renderingService.renderAlbums();
+    public void showAllAlbums(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        writePage(request, response, renderingService.getAlbumsPage());
     }
 
+    /**
+     * Photo list pages are selected by <code>page</code> number or by the <code>after</code> cursor,
+     * <code>stream</code> writes the list of the whole album without paging or caching.
+     * <code>sort</code> selects the order of photos (name, modified or captured), see {@link SortOrder}.
+     */
     @RequestMapping("/album/{album}")
-    public String showAlbum(@PathVariable("album") String album,
-                            @RequestParam(value = "list", required = false) boolean list,
-                            HttpServletResponse response) {
+    public void showAlbum(@PathVariable("album") String album,
+                          @RequestParam(value = "list", required = false) boolean list,
+                          @RequestParam(value = "page", required = false, defaultValue = "1") int page,
+                          @RequestParam(value = "after", required = false) String after,
+                          @RequestParam(value = "stream", required = false) boolean stream,
+                          @RequestParam(value = "sort", required = false) String sort,
+                          HttpServletRequest request,
+                          HttpServletResponse response) {
         try {
+            SortOrder sortOrder = sortService.getSortOrder(sort);
             if (!list) {
-                response.sendRedirect(
-                        "/photo/" + album + "/" + renderingService.findNextPhoto(album, null));
-                return null;
+                response.sendRedirect(renderingService.getPhotoUrl(
+                        album, renderingService.findNextPhoto(album, null, sortOrder), false, sortOrder));
+            } else if (stream) {
+                response.setContentType(CONTENT_TYPE_HTML);
+                renderingService.writeAlbumPhotos(album, sortOrder, response.getWriter());
             } else {
-                return renderingService.renderAlbumPhotos(album);
+                writePage(request, response,
+                        renderingService.getAlbumPhotosPage(album, page, after, sortOrder));
             }
         } catch (Exception e) {
             try {
                 response.sendRedirect(URL_ALL_ALBUMS);//fallback
-            } catch (IOException e1) {
+            } catch (IOException | IllegalStateException e1) {
                 //silently swallow
             }
-            return null;
         }
     }
 
     @RequestMapping("/photo/{album}/{photo}")
-    public String showPhoto(@PathVariable("album") String album,
+    public void showPhoto(@PathVariable("album") String album,
+                          @PathVariable("photo") String photo,
+                          @RequestParam(value = "fullScreen", required = false) boolean fullScreen,
+                          @RequestParam(value = "sort", required = false) String sort,
+                          HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        SortOrder sortOrder = sortService.getSortOrder(sort);
+        String encodedPhoto = RenderingService.encode(photo);
+        RenderedPage page = renderingService.getPhotoPage(album, encodedPhoto, fullScreen, URL_ALL_ALBUMS, sortOrder);
+        if (page.getPreloadLink() != null) {
+            response.setHeader(HttpHeaders.LINK, page.getPreloadLink());
+        }
+        prefetchService.prefetchAfter(album, encodedPhoto, sortOrder, request.getHeader(HttpHeaders.ACCEPT));
+        writePage(request, response, page.getBody());
+    }
+
+    private void writePage(HttpServletRequest request, HttpServletResponse response, byte[] page)
+            throws IOException {
+        response.setContentType(CONTENT_TYPE_HTML);
+        response.setContentLength(page.length);
+        asyncResponseWriter.write(request, response, page);
+    }
+
+    @RequestMapping("/thumb/{album}/{photo}")
+    public void showThumbnail(@PathVariable("album") String album,
+                              @PathVariable("photo") String photo,
+                              HttpServletResponse response) throws IOException {
+        FileChannel thumbnail = thumbnailService.getThumbnail(album, photo);
+        if (thumbnail == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try (InputStream input = Channels.newInputStream(thumbnail)) {
+            response.setContentType("image/jpeg");
+            response.setContentLengthLong(thumbnail.size());
+            StreamUtils.copy(input, response.getOutputStream());
+        }
+    }
+
+    @RequestMapping("/variant/{width}/{album}/{photo}")
+    public void showVariant(@PathVariable("width") int width,
+                            @PathVariable("album") String album,
                             @PathVariable("photo") String photo,
-                            @RequestParam(value = "fullScreen", required = false) boolean fullScreen) {
-        return renderingService.renderPhoto(album, RenderingService.encode(photo), fullScreen, URL_ALL_ALBUMS);
+                            HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        FileChannel variant = variantService.getVariant(album, photo, width, accept);
+        if (variant == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try (InputStream input = Channels.newInputStream(variant)) {
+            if (variantService.isNegotiated()) {
+                response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+            }
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL_VARIANT);
+            response.setContentType(variantService.getContentType(accept));
+            response.setContentLengthLong(variant.size());
+            StreamUtils.copy(input, response.getOutputStream());
+        }
+    }
+
+    /**
+     * Static assets under fingerprinted URLs, see {@link AssetService}.
+     */
+    @RequestMapping(AssetService.URL_ASSETS + "{file}")
+    public void showAsset(@PathVariable("file") String file,
+                          HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        assetService.serve(file, request, response);
+    }
+
+    /**
+     * Originals and videos, mapped under the last segment of albums.path; more specific mappings win.
+     */
+    @RequestMapping("/{gallery}/{album}/{photo}")
+    public void showMedia(@PathVariable("gallery") String gallery,
+                          @PathVariable("album") String album,
+                          @PathVariable("photo") String photo,
+                          HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        if (!gallery.equals(renderingService.getBaseGalleryDir())) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        mediaService.serve(album, photo, request, response);
+    }
+
+    /**
+     * Prometheus text format, admins only.
+     */
+    @RequestMapping(URL_METRICS)
+    public void showMetrics(HttpServletResponse response) throws IOException {
+        response.setContentType(CONTENT_TYPE_METRICS);
+        Writer writer = response.getWriter();
+        metrics.write(writer);
+        writer.flush();
     }
 
     @RequestMapping("/reset")
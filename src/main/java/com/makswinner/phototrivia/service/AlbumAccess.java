@@ -0,0 +1,119 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static com.makswinner.phototrivia.config.SecurityConfig.ROLE_ADMIN;
+import static com.makswinner.phototrivia.config.SecurityConfig.ROLE_GUEST;
+
+/**
+ * Albums a user may see, resolved once when the user is registered and carried by the user as an authority,
+ * so requests neither split nor scan the configured album list. Names match case-insensitively,
+ * <code>*</code> allows every album.
+ */
+public final class AlbumAccess implements GrantedAuthority {
+    private static final long serialVersionUID = 1L;
+    private static final String ROLE_PREFIX = "ROLE_";
+    private static final String ALL_ALBUMS = "*";
+
+    public static final AlbumAccess ALL = new AlbumAccess(ALL_ALBUMS, true, Collections.emptySet());
+    public static final AlbumAccess NONE = new AlbumAccess("", false, Collections.emptySet());
+
+    private final String albumsRaw;
+    private final boolean all;
+    private final Set<String> albums;
+
+    private AlbumAccess(String albumsRaw, boolean all, Set<String> albums) {
+        this.albumsRaw = albumsRaw;
+        this.all = all;
+        this.albums = albums;
+    }
+
+    /**
+     * @param albumsRaw comma separated album names as configured for a guest user
+     */
+    public static AlbumAccess of(String albumsRaw) {
+        Set<String> albums = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        albums.addAll(Arrays.asList(albumsRaw.split(",")));
+        return new AlbumAccess(albumsRaw, albums.contains(ALL_ALBUMS), Collections.unmodifiableSet(albums));
+    }
+
+    /**
+     * @return the access the user was registered with, or one derived from its role and album authorities
+     */
+    public static AlbumAccess of(UserDetails userDetails) {
+        String role = ROLE_GUEST;
+        String albumsRaw = "";
+        boolean roleFound = false;
+        boolean albumsFound = false;
+        for (GrantedAuthority authority : userDetails.getAuthorities()) {
+            if (authority instanceof AlbumAccess) {
+                return (AlbumAccess) authority;
+            }
+            String value = authority.getAuthority();
+            if (value.startsWith(ROLE_PREFIX)) {
+                if (!roleFound) {
+                    role = value;
+                    roleFound = true;
+                }
+            } else if (!albumsFound) {
+                albumsRaw = value;
+                albumsFound = true;
+            }
+        }
+        if (ROLE_ADMIN.equals(role)) {
+            return ALL;
+        }
+        return ROLE_GUEST.equals(role) ? of(albumsRaw) : NONE;
+    }
+
+    /**
+     * @return access of the user of the current request
+     */
+    public static AlbumAccess current() {
+        return of((UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal());
+    }
+
+    public boolean allows(String album) {
+        return all || albums.contains(album);
+    }
+
+    /**
+     * @return the allowed albums of the given ones, in their order
+     */
+    public List<String> filter(List<String> albums) {
+        return all ? albums : albums.stream().filter(this::allows).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the configured album list, which also identifies the access for caching
+     */
+    @Override
+    public String getAuthority() {
+        return albumsRaw;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof AlbumAccess && albumsRaw.equals(((AlbumAccess) o).albumsRaw)
+                && all == ((AlbumAccess) o).all;
+    }
+
+    @Override
+    public int hashCode() {
+        return albumsRaw.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return albumsRaw;
+    }
+}
@@ -0,0 +1,426 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * In-memory catalog of albums and their photos. Albums are scanned once on startup, album photos on first access,
+ * after that file system events keep both up to date, so requests never list directories.
+ * Album photos are saved to a {@link CatalogSnapshot} on shutdown (and after startup indexing), and on the next
+ * start taken from it instead of scanning for every album whose directory has not changed since.
+ */
+@Service
+public class AlbumCatalog {
+    private static final Comparator<String> ALBUM_ORDER = Comparator.reverseOrder();
+    private static final String SCAN_SECONDS = "phototrivia_scan_seconds";
+    private static final String SCAN_SECONDS_HELP =
+            "Listing the albums directory or a single album, or loading a single album from the snapshot";
+    private static final String SNAPSHOT_FILE = "catalog.bin";
+    private static final long MODIFIED_RESOLUTION_MS = 2000;
+
+    /**
+     * Notified from the watcher thread (or the thread calling {@link #reset()}) after the catalog has changed.
+     */
+    public interface Listener {
+        void albumsChanged();
+
+        void albumChanged(String album);
+
+        /**
+         * Notified from the thread that loaded the photos of the album, on its first access or the first one after
+         * a change dropped them; possibly more than once when threads loaded it together.
+         */
+        default void albumLoaded(String album) {
+        }
+    }
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value(value = "${albums.path}")
+    private String albumsPathRaw;
+
+    @Value(value = "${extensions.ignore}")
+    private String ignoreExtensionsRaw;
+
+    @Value(value = "${albums.watch:true}")
+    private boolean watch;
+
+    @Value(value = "${data.path}")
+    private String dataPathRaw;
+
+    @Value(value = "${albums.index:false}")
+    private boolean index;
+
+    @Value(value = "${albums.index.threads:2}")
+    private int indexThreads;
+
+    @Value(value = "${albums.index.prefix.compression:true}")
+    private boolean prefixCompression;
+
+    private final Map<String, AlbumIndex> albumPhotos = new ConcurrentHashMap<>();
+    private final Map<String, Long> scannedModified = new ConcurrentHashMap<>();
+    private final Map<WatchKey, String> watchedAlbums = new ConcurrentHashMap<>();
+    private final List<String> ignoreExtensions = new LinkedList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile List<String> albums = Collections.emptyList();
+    private volatile long albumsVersion;
+    private Path albumsPath;
+    private WatchService watchService;
+    private WatchKey albumsKey;
+    private Metrics.Timer scanAlbumsTimer;
+    private Metrics.Timer scanAlbumTimer;
+    private Metrics.Timer loadAlbumTimer;
+    private Metrics.CacheCounters snapshotCounters;
+    private Path snapshotFile;
+    private volatile CatalogSnapshot snapshot = CatalogSnapshot.EMPTY;
+
+    @PostConstruct
+    private void init() {
+        albumsPath = Paths.get(albumsPathRaw);
+        scanAlbumsTimer = metrics.timer(SCAN_SECONDS, SCAN_SECONDS_HELP, "scope=\"albums\"");
+        scanAlbumTimer = metrics.timer(SCAN_SECONDS, SCAN_SECONDS_HELP, "scope=\"album\"");
+        loadAlbumTimer = metrics.timer(SCAN_SECONDS, SCAN_SECONDS_HELP, "scope=\"snapshot\"");
+        snapshotCounters = metrics.cacheCounters("catalog-snapshot");
+        ignoreExtensions.addAll(Arrays.asList(ignoreExtensionsRaw.split(",")));
+        try {
+            snapshotFile = Files.createDirectories(Paths.get(dataPathRaw)).resolve(SNAPSHOT_FILE);
+            snapshot = CatalogSnapshot.open(snapshotFile);
+        } catch (IOException e) {
+            snapshotFile = null;//silently swallow, albums are then always scanned
+        }
+        if (watch) {
+            startWatching();
+        }
+        scanAlbums();
+        if (index) {
+            Thread indexer = new Thread(this::indexAlbums, "album-catalog-indexer");
+            indexer.setDaemon(true);
+            indexer.start();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                //silently swallow
+            }
+        }
+        saveSnapshot();
+    }
+
+    /**
+     * Loads every album on a bounded pool, so the first visit of an album does not wait for its scan,
+     * and saves the result for the next start.
+     */
+    private void indexAlbums() {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, indexThreads));
+        try {
+            pool.submit(() -> albums.parallelStream().forEach(album -> {
+                try {
+                    getAlbum(album);
+                } catch (IllegalArgumentException e) {
+                    //silently swallow, deleted meanwhile
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            //silently swallow, remaining albums are scanned on first access
+        } finally {
+            pool.shutdown();
+        }
+        saveSnapshot();
+    }
+
+    private synchronized void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            snapshot.write(snapshotFile, albums, albumPhotos, scannedModified);
+        } catch (IOException e) {
+            //silently swallow, the previous snapshot stays
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return all album names, newest (reverse lexical) first
+     */
+    public List<String> getAlbums() {
+        return albums;
+    }
+
+    /**
+     * Changes after the album list has changed: read it before {@link #getAlbums()} to get a version that is
+     * never newer than the list.
+     */
+    public long getAlbumsVersion() {
+        return albumsVersion;
+    }
+
+    public boolean containsAlbum(String album) {
+        return Collections.binarySearch(albums, album, ALBUM_ORDER) >= 0;
+    }
+
+    public AlbumIndex getAlbum(String album) {
+        AlbumIndex photos = albumPhotos.get(album);
+        if (photos == null) {
+            if (!containsAlbum(album)) {
+                throw new IllegalArgumentException("Unknown album " + album);
+            }
+            photos = albumPhotos.computeIfAbsent(album, this::scanAlbum);
+            listeners.forEach(listener -> listener.albumLoaded(album));
+        }
+        return photos;
+    }
+
+    /**
+     * @return photos of the album if they are loaded, null otherwise; unlike {@link #getAlbum(String)} never scans
+     */
+    public AlbumIndex findLoadedAlbum(String album) {
+        return albumPhotos.get(album);
+    }
+
+    /**
+     * Reads the photos of an album that is not loaded from the snapshot of an earlier run, without loading it:
+     * the index is copied out of the snapshot on every call and not kept.
+     *
+     * @return null if the album is loaded, not in the snapshot or its directory changed since
+     */
+    public AlbumIndex readStoredAlbum(String album) {
+        CatalogSnapshot stored = snapshot;
+        if (albumPhotos.containsKey(album) || !stored.contains(album)) {
+            return null;
+        }
+        return stored.read(album, albumsPath.resolve(album).toFile().lastModified());
+    }
+
+    /**
+     * Drops every cached album and scans the albums directory again.
+     */
+    public void reset() {
+        watchedAlbums.keySet().forEach(WatchKey::cancel);
+        watchedAlbums.clear();
+        List<String> cachedAlbums = new ArrayList<>(albumPhotos.keySet());
+        snapshot = CatalogSnapshot.EMPTY;
+        albumPhotos.clear();
+        scannedModified.clear();
+        scanAlbums();
+        cachedAlbums.forEach(this::fireAlbumChanged);
+    }
+
+    private void fireAlbumsChanged() {
+        listeners.forEach(Listener::albumsChanged);
+    }
+
+    private void fireAlbumChanged(String album) {
+        listeners.forEach(listener -> listener.albumChanged(album));
+    }
+
+    private synchronized void scanAlbums() {
+        long start = System.nanoTime();
+        String[] directories = albumsPath.toFile().list(
+                (current, name) -> new File(current, name).isDirectory());
+        scanAlbumsTimer.recordSince(start);
+        albums = directories != null
+                ? Collections.unmodifiableList(Arrays.stream(directories).sorted(ALBUM_ORDER)
+                        .collect(Collectors.toList()))
+                : Collections.emptyList();
+        albumsVersion++;
+        fireAlbumsChanged();
+    }
+
+    private AlbumIndex scanAlbum(String album) {
+        long start = System.nanoTime();
+        Path dir = albumsPath.resolve(album);
+        watchAlbum(dir, album);
+        long modified = dir.toFile().lastModified();
+        scannedModified.put(album, System.currentTimeMillis() - modified > MODIFIED_RESOLUTION_MS
+                ? modified : CatalogSnapshot.NOT_VALIDATED);
+        AlbumIndex photos = snapshot.read(album, modified);
+        if (photos != null) {
+            snapshotCounters.hit();
+            loadAlbumTimer.recordSince(start);
+            return photos;
+        }
+        snapshotCounters.miss();
+        String[] files = dir.toFile().list((current, name) -> isPhoto(new File(current, name)));
+        photos = AlbumIndex.of(files != null ? Arrays.asList(files) : Collections.emptyList(), prefixCompression);
+        scanAlbumTimer.recordSince(start);
+        return photos;
+    }
+
+    private boolean isPhoto(File file) {
+        return file.isFile()
+                && !ignoreExtensions.contains(RenderingService.getFilenameExtensionLowerCase(file.getName()));
+    }
+
+    private synchronized void addAlbum(String album) {
+        int position = Collections.binarySearch(albums, album, ALBUM_ORDER);
+        if (position < 0) {
+            List<String> changed = new ArrayList<>(albums);
+            changed.add(-position - 1, album);
+            albums = Collections.unmodifiableList(changed);
+            albumsVersion++;
+            fireAlbumsChanged();
+        }
+    }
+
+    private synchronized void removeAlbum(String album) {
+        int position = Collections.binarySearch(albums, album, ALBUM_ORDER);
+        if (position >= 0) {
+            List<String> changed = new ArrayList<>(albums);
+            changed.remove(position);
+            albums = Collections.unmodifiableList(changed);
+            albumsVersion++;
+            fireAlbumsChanged();
+        }
+        albumPhotos.remove(album);
+        scannedModified.remove(album);
+        fireAlbumChanged(album);
+        watchedAlbums.entrySet().removeIf(entry -> {
+            if (entry.getValue().equals(album)) {
+                entry.getKey().cancel();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void startWatching() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            albumsKey = albumsPath.register(watchService, ENTRY_CREATE, ENTRY_DELETE, OVERFLOW);
+        } catch (IOException e) {
+            watchService = null;//catalog then only changes on reset
+            return;
+        }
+        Thread watcher = new Thread(this::processEvents, "album-catalog-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watchAlbum(Path dir, String album) {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchedAlbums.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY, OVERFLOW), album);
+        } catch (IOException e) {
+            //silently swallow, album then only changes on reset
+        }
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            String album = watchedAlbums.get(key);
+            List<WatchEvent<?>> events = key.pollEvents();
+            if (key == albumsKey) {
+                events.forEach(this::onAlbumsEvent);
+            } else if (album != null) {
+                onAlbumEvents(album, events);
+            }
+            if (!key.reset() && album != null) {
+                removeAlbum(album);
+            }
+        }
+    }
+
+    private void onAlbumsEvent(WatchEvent<?> event) {
+        if (event.kind() == OVERFLOW) {
+            scanAlbums();
+            return;
+        }
+        String album = event.context().toString();
+        if (event.kind() == ENTRY_CREATE && Files.isDirectory(albumsPath.resolve(album))) {
+            addAlbum(album);
+        } else if (event.kind() == ENTRY_DELETE) {
+            removeAlbum(album);
+        }
+    }
+
+    /**
+     * Applies the events of one poll of an album as a single change: a photo created or deleted several times
+     * ends up as it is on disk, and a photo modified in place still gives the album a new index, so that pages
+     * and sort keys of the album are refreshed.
+     */
+    private void onAlbumEvents(String album, List<WatchEvent<?>> events) {
+        Set<String> touched = new HashSet<>();
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == OVERFLOW) {
+                albumPhotos.remove(album);//rescanned on next access
+                scannedModified.remove(album);
+                fireAlbumChanged(album);
+                return;
+            }
+            touched.add(event.context().toString());
+        }
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        Path dir = albumsPath.resolve(album);
+        for (String photo : touched) {
+            if (isPhoto(dir.resolve(photo).toFile())) {
+                added.add(photo);
+            } else {
+                removed.add(photo);
+            }
+        }
+        boolean[] changed = new boolean[1];
+        albumPhotos.computeIfPresent(album, (name, photos) -> {
+            changed[0] = !added.isEmpty()
+                    || removed.stream().anyMatch(photo -> photos.indexOfName(photo) != AlbumIndex.NOT_FOUND);
+            return changed[0] ? photos.changed(added, removed) : photos;
+        });
+        if (changed[0]) {
+            fireAlbumChanged(album);
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package com.makswinner.phototrivia.service;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable snapshot of album photos in display order with a photo to position lookup,
+ * so that navigation to the next/previous photo does not scan the album.
+ * Changes produce a new index, readers keep using the one they already hold.
+ * <p>
+ * Raw names are kept as UTF-8 in a single byte arena with an offset per photo, sorted by their bytes, and are
+ * URL-encoded only when a caller asks for the encoded form. With prefix compression every name but the first of
+ * each block of {@value #BLOCK_SIZE} only stores the length it shares with the previous name and the rest, which
+ * suits camera names such as <code>IMG_20190101_...</code>. Lookups binary search the arena through per-thread
+ * buffers and do not allocate, only methods returning names create strings.
+ */
+public final class AlbumIndex {
+    public static final int NOT_FOUND = -1;
+    private static final int BLOCK_SIZE = 16;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Per-thread buffers for a looked up name and for the name read at a position. Reading a position points
+     * <code>bytes</code>, <code>offset</code> and <code>length</code> at the arena, or at <code>name</code> when
+     * the name has to be put together from its block.
+     */
+    private static final class Buffers {
+        private byte[] key = new byte[INITIAL_BUFFER_SIZE];
+        private byte[] name = new byte[INITIAL_BUFFER_SIZE];
+        private byte[] bytes;
+        private int offset;
+        private int length;
+
+        private void ensureKey(int size) {
+            if (key.length < size) {
+                key = new byte[Math.max(size, key.length * 2)];
+            }
+        }
+
+        private void ensureName(int size) {
+            if (name.length < size) {
+                name = Arrays.copyOf(name, Math.max(size, name.length * 2));
+            }
+        }
+    }
+
+    private final long version = VERSIONS.incrementAndGet();
+    private final byte[] arena;
+    private final int[] offsets;
+    private final boolean prefixCompressed;
+
+    /**
+     * @param offsets start of every name in <code>arena</code> and the end of the last one
+     */
+    private AlbumIndex(byte[] arena, int[] offsets, boolean prefixCompressed) {
+        this.arena = arena;
+        this.offsets = offsets;
+        this.prefixCompressed = prefixCompressed;
+    }
+
+    /**
+     * @param names raw file names, in any order
+     */
+    public static AlbumIndex of(Collection<String> names) {
+        return of(names, false);
+    }
+
+    /**
+     * @param names raw file names, in any order
+     * @param prefixCompressed whether to store names as the rest after the prefix shared with the previous name
+     */
+    public static AlbumIndex of(Collection<String> names, boolean prefixCompressed) {
+        byte[][] sorted = new byte[names.size()][];
+        int i = 0;
+        int length = 0;
+        for (String name : names) {
+            sorted[i] = name.getBytes(StandardCharsets.UTF_8);
+            length += sorted[i++].length;
+        }
+        Arrays.sort(sorted, AlbumIndex::compare);
+        Builder builder = new Builder(sorted.length, length, prefixCompressed);
+        for (byte[] name : sorted) {
+            builder.add(name, 0, name.length);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(DataOutput)}.
+     *
+     * @throws IllegalArgumentException if the data is damaged
+     */
+    static AlbumIndex readFrom(ByteBuffer buffer) {
+        try {
+            boolean prefixCompressed = buffer.get() != 0;
+            int count = buffer.getInt();
+            int length = buffer.getInt();
+            if (count < 0 || length < 0 || (long) count * Integer.BYTES + length > buffer.remaining()) {
+                throw new IllegalArgumentException("Index past the end of the buffer");
+            }
+            int[] offsets = new int[count + 1];
+            buffer.asIntBuffer().get(offsets, 0, count);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+            offsets[count] = length;
+            byte[] arena = new byte[length];
+            buffer.get(arena);
+            for (int i = 0; i < count; i++) {
+                if (offsets[i] < 0 || offsets[i] > offsets[i + 1]) {
+                    throw new IllegalArgumentException("Name offsets out of order");
+                }
+            }
+            if (prefixCompressed) {
+                checkSharedLengths(arena, offsets);
+            }
+            return new AlbumIndex(arena, offsets, prefixCompressed);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Index past the end of the buffer", e);
+        }
+    }
+
+    /**
+     * Decodes the shared length of every compressed name once, so that reading names later cannot run past a name
+     * or share more than the previous name has.
+     *
+     * @throws IllegalArgumentException if a length is malformed or too long
+     */
+    private static void checkSharedLengths(byte[] arena, int[] offsets) {
+        int previousLength = 0;
+        for (int i = 0; i < offsets.length - 1; i++) {
+            int at = offsets[i];
+            int shared = 0;
+            int shift = 0;
+            byte value;
+            do {
+                if (at == offsets[i + 1] || shift > 28) {
+                    throw new IllegalArgumentException("Malformed shared length of name " + i);
+                }
+                value = arena[at++];
+                shared |= (value & 0x7F) << shift;
+                shift += 7;
+            } while (value < 0);
+            if (shared < 0 || shared > (i % BLOCK_SIZE == 0 ? 0 : previousLength)) {
+                throw new IllegalArgumentException("Shared length of name " + i + " past the previous name");
+            }
+            previousLength = shared + offsets[i + 1] - at;
+        }
+    }
+
+    /**
+     * Writes the arena as it is: compression flag, photo count, arena length, name offsets and the arena.
+     */
+    void writeTo(DataOutput output) throws IOException {
+        output.writeBoolean(prefixCompressed);
+        output.writeInt(size());
+        output.writeInt(arena.length);
+        for (int i = 0; i < size(); i++) {
+            output.writeInt(offsets[i]);
+        }
+        output.write(arena);
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return number that differs between all indexes created by this process, so it changes with every change
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return URL-encoded photo name at <code>position</code>, as {@link RenderingService#encode(String)}
+     */
+    public String get(int position) {
+        Buffers buffers = BUFFERS.get();
+        read(position, buffers);
+        int length = 0;
+        for (int i = buffers.offset; i < buffers.offset + buffers.length; i++) {
+            length += isUnreserved(buffers.bytes[i]) ? 1 : 3;
+        }
+        char[] encoded = new char[length];
+        int at = 0;
+        for (int i = buffers.offset; i < buffers.offset + buffers.length; i++) {
+            byte value = buffers.bytes[i];
+            if (isUnreserved(value)) {
+                encoded[at++] = (char) value;
+            } else {
+                encoded[at++] = '%';
+                encoded[at++] = HEX_DIGITS[(value >> 4) & 0xF];
+                encoded[at++] = HEX_DIGITS[value & 0xF];
+            }
+        }
+        return new String(encoded);
+    }
+
+    /**
+     * @return raw photo name at <code>position</code>
+     */
+    public String getName(int position) {
+        Buffers buffers = BUFFERS.get();
+        read(position, buffers);
+        return new String(buffers.bytes, buffers.offset, buffers.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param photo URL-encoded photo name, as returned by {@link #get(int)}
+     */
+    public int indexOf(String photo) {
+        if (photo == null) {
+            return NOT_FOUND;
+        }
+        Buffers buffers = BUFFERS.get();
+        int length = decodeKey(photo, buffers);
+        if (length < 0) {
+            return NOT_FOUND;
+        }
+        int position = search(length, buffers);
+        return position >= 0 ? position : NOT_FOUND;
+    }
+
+    /**
+     * @param name raw file name
+     */
+    public int indexOfName(String name) {
+        if (name == null) {
+            return NOT_FOUND;
+        }
+        Buffers buffers = BUFFERS.get();
+        int position = search(encodeKey(name, buffers), buffers);
+        return position >= 0 ? position : NOT_FOUND;
+    }
+
+    /**
+     * @param page 1-based page number
+     * @param pageSize photos per page, 0 for a single page
+     * @return position of the first photo on the page, {@link #size()} if the page is past the end
+     */
+    public int pageStart(int page, int pageSize) {
+        return pageSize > 0 ? (int) Math.min((Math.max(page, 1) - 1L) * pageSize, size()) : 0;
+    }
+
+    /**
+     * @param name raw file name, which does not have to be in the album
+     * @return position of the first photo sorted after <code>name</code>, {@link #size()} if there is none
+     */
+    public int positionAfter(String name) {
+        Buffers buffers = BUFFERS.get();
+        int position = search(encodeKey(name, buffers), buffers);
+        return position >= 0 ? position + 1 : -position - 1;
+    }
+
+    /**
+     * @return the photo after <code>current</code>, or the first photo when it is the last one or unknown
+     */
+    public String next(String current) {
+        int position = indexOf(current);
+        return get(position != NOT_FOUND && position + 1 < size() ? position + 1 : 0);
+    }
+
+    /**
+     * @return the photo before <code>current</code>, the last photo when it is the first one,
+     * or the first photo when it is unknown
+     */
+    public String previous(String current) {
+        int position = indexOf(current);
+        if (position == NOT_FOUND) {
+            return get(0);
+        }
+        return get(position > 0 ? position - 1 : size() - 1);
+    }
+
+    /**
+     * Applies a batch of changes in a single pass over the names. Returns a new index even if no name changes,
+     * so that photos modified in place get a new {@link #getVersion() version}.
+     *
+     * @param added raw file names to add, those already there are ignored
+     * @param removed raw file names to remove, those not there are ignored
+     */
+    public AlbumIndex changed(Collection<String> added, Collection<String> removed) {
+        Buffers buffers = BUFFERS.get();
+        boolean[] removedPositions = new boolean[size()];
+        int removedCount = 0;
+        for (String name : removed) {
+            int position = search(encodeKey(name, buffers), buffers);
+            if (position >= 0 && !removedPositions[position]) {
+                removedPositions[position] = true;
+                removedCount++;
+            }
+        }
+        byte[][] addedKeys = new byte[added.size()][];
+        int addedCount = 0;
+        for (String name : added) {
+            int length = encodeKey(name, buffers);
+            if (search(length, buffers) < 0) {
+                addedKeys[addedCount++] = Arrays.copyOf(buffers.key, length);
+            }
+        }
+        Arrays.sort(addedKeys, 0, addedCount, AlbumIndex::compare);
+        int distinct = 0;
+        int addedLength = 0;
+        for (int i = 0; i < addedCount; i++) {
+            if (distinct == 0 || compare(addedKeys[i], addedKeys[distinct - 1]) != 0) {
+                addedKeys[distinct++] = addedKeys[i];
+                addedLength += addedKeys[i].length;
+            }
+        }
+        addedCount = distinct;
+        Builder builder = new Builder(size() - removedCount + addedCount, arena.length + addedLength,
+                prefixCompressed);
+        int next = 0;
+        for (int i = 0; i < size(); i++) {
+            if (i == 0) {
+                read(i, buffers);
+            } else {
+                readNext(i, buffers);
+            }
+            while (next < addedCount && compare(buffers.bytes, buffers.offset, buffers.length, addedKeys[next],
+                    addedKeys[next].length) > 0) {
+                builder.add(addedKeys[next], 0, addedKeys[next++].length);
+            }
+            if (!removedPositions[i]) {
+                builder.add(buffers.bytes, buffers.offset, buffers.length);
+            }
+        }
+        while (next < addedCount) {
+            builder.add(addedKeys[next], 0, addedKeys[next++].length);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Receives the names of a pass over the index, see {@link #forEachName(int, int, NameVisitor)}.
+     */
+    interface NameVisitor {
+        /**
+         * @param bytes holds the UTF-8 name from <code>offset</code> for <code>length</code> bytes, only during
+         * the call; the visitor must not use any index on the calling thread meanwhile
+         * @return whether to go on with the next name
+         */
+        boolean visit(int position, byte[] bytes, int offset, int length);
+    }
+
+    /**
+     * Passes the raw names from <code>from</code> to <code>to</code> (exclusive) to the visitor without creating
+     * strings.
+     */
+    void forEachName(int from, int to, NameVisitor visitor) {
+        Buffers buffers = BUFFERS.get();
+        for (int i = from; i < to; i++) {
+            if (i == from) {
+                read(i, buffers);
+            } else {
+                readNext(i, buffers);
+            }
+            if (!visitor.visit(i, buffers.bytes, buffers.offset, buffers.length)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Binary search for the name in <code>buffers.key</code>, first over the blocks, then within the block.
+     *
+     * @return position of the name, or <code>-(insertion position) - 1</code> as {@link Arrays#binarySearch}
+     */
+    private int search(int keyLength, Buffers buffers) {
+        int blockSize = prefixCompressed ? BLOCK_SIZE : 1;
+        int low = 0;
+        int high = (size() + blockSize - 1) / blockSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            read(middle * blockSize, buffers);
+            int comparison = compare(buffers.bytes, buffers.offset, buffers.length, buffers.key, keyLength);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle * blockSize;
+            }
+        }
+        if (high < 0) {
+            return -1;
+        }
+        int start = high * blockSize;
+        int end = Math.min(start + blockSize, size());
+        read(start, buffers);
+        for (int i = start + 1; i < end; i++) {
+            readNext(i, buffers);
+            int comparison = compare(buffers.bytes, buffers.offset, buffers.length, buffers.key, keyLength);
+            if (comparison == 0) {
+                return i;
+            } else if (comparison > 0) {
+                return -i - 1;
+            }
+        }
+        return -end - 1;
+    }
+
+    /**
+     * Points <code>buffers</code> at the name at <code>position</code>.
+     */
+    private void read(int position, Buffers buffers) {
+        if (!prefixCompressed) {
+            buffers.bytes = arena;
+            buffers.offset = offsets[position];
+            buffers.length = offsets[position + 1] - offsets[position];
+            return;
+        }
+        for (int i = position - position % BLOCK_SIZE; i <= position; i++) {
+            readNext(i, buffers);
+        }
+    }
+
+    /**
+     * Like {@link #read(int, Buffers)}, but expects <code>buffers</code> to hold the name before
+     * <code>position</code>, so that a compressed name only needs its own rest appended.
+     */
+    private void readNext(int position, Buffers buffers) {
+        if (!prefixCompressed) {
+            read(position, buffers);
+            return;
+        }
+        int at = offsets[position];
+        int shared = 0;
+        int shift = 0;
+        byte value;
+        do {
+            value = arena[at++];
+            shared |= (value & 0x7F) << shift;
+            shift += 7;
+        } while (value < 0);
+        int rest = offsets[position + 1] - at;
+        buffers.ensureName(shared + rest);
+        System.arraycopy(arena, at, buffers.name, shared, rest);
+        buffers.bytes = buffers.name;
+        buffers.offset = 0;
+        buffers.length = shared + rest;
+    }
+
+    /**
+     * Writes <code>name</code> as UTF-8 to <code>buffers.key</code>, unpaired surrogates as <code>?</code>
+     * like {@link String#getBytes}.
+     *
+     * @return length of the key
+     */
+    private static int encodeKey(String name, Buffers buffers) {
+        buffers.ensureKey(name.length() * 3);
+        byte[] key = buffers.key;
+        int length = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x80) {
+                key[length++] = (byte) c;
+            } else if (c < 0x800) {
+                key[length++] = (byte) (0xC0 | c >> 6);
+                key[length++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < name.length()
+                    && Character.isLowSurrogate(name.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, name.charAt(++i));
+                key[length++] = (byte) (0xF0 | codePoint >> 18);
+                key[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                key[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                key[length++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                key[length++] = '?';
+            } else {
+                key[length++] = (byte) (0xE0 | c >> 12);
+                key[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                key[length++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the raw bytes of an URL-encoded name to <code>buffers.key</code>.
+     *
+     * @return length of the key, or -1 if <code>photo</code> is not encoded the way {@link #get(int)} encodes,
+     * so that it matches exactly the names it matched as a string
+     */
+    private static int decodeKey(String photo, Buffers buffers) {
+        buffers.ensureKey(photo.length());
+        byte[] key = buffers.key;
+        int length = 0;
+        for (int i = 0; i < photo.length(); i++) {
+            char c = photo.charAt(i);
+            if (c == '%' && i + 2 < photo.length()) {
+                int high = Arrays.binarySearch(HEX_DIGITS, photo.charAt(++i));
+                int low = Arrays.binarySearch(HEX_DIGITS, photo.charAt(++i));
+                if (high < 0 || low < 0 || isUnreserved((byte) (high << 4 | low))) {
+                    return -1;
+                }
+                key[length++] = (byte) (high << 4 | low);
+            } else if (c < 0x80 && isUnreserved((byte) c)) {
+                key[length++] = (byte) c;
+            } else {
+                return -1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return whether {@link java.net.URLEncoder} leaves the byte as it is
+     */
+    private static boolean isUnreserved(byte value) {
+        return value >= 'a' && value <= 'z' || value >= 'A' && value <= 'Z' || value >= '0' && value <= '9'
+                || value == '.' || value == '-' || value == '*' || value == '_';
+    }
+
+    private static int compare(byte[] first, byte[] second) {
+        return compare(first, 0, first.length, second, second.length);
+    }
+
+    /**
+     * Compares bytes as unsigned, which sorts UTF-8 names by code point.
+     */
+    private static int compare(byte[] first, int offset, int length, byte[] second, int secondLength) {
+        int common = Math.min(length, secondLength);
+        for (int i = 0; i < common; i++) {
+            int comparison = (first[offset + i] & 0xFF) - (second[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length - secondLength;
+    }
+
+    /**
+     * Appends sorted names to a new arena.
+     */
+    private static final class Builder {
+        private final int[] offsets;
+        private final boolean prefixCompressed;
+        private byte[] arena;
+        private int length;
+        private int count;
+        private byte[] previous = new byte[INITIAL_BUFFER_SIZE];
+        private int previousLength;
+
+        private Builder(int names, int nameBytes, boolean prefixCompressed) {
+            this.offsets = new int[names + 1];
+            this.prefixCompressed = prefixCompressed;
+            this.arena = new byte[prefixCompressed ? nameBytes + names : nameBytes];
+        }
+
+        private void add(byte[] name, int offset, int nameLength) {
+            offsets[count] = length;
+            if (!prefixCompressed) {
+                append(name, offset, nameLength);
+            } else {
+                int shared = 0;
+                if (count % BLOCK_SIZE != 0) {
+                    int common = Math.min(previousLength, nameLength);
+                    while (shared < common && previous[shared] == name[offset + shared]) {
+                        shared++;
+                    }
+                }
+                for (int value = shared; ; value >>>= 7) {
+                    ensure(1);
+                    if (value < 0x80) {
+                        arena[length++] = (byte) value;
+                        break;
+                    }
+                    arena[length++] = (byte) (0x80 | value & 0x7F);
+                }
+                append(name, offset + shared, nameLength - shared);
+                if (previous.length < nameLength) {
+                    previous = new byte[Math.max(nameLength, previous.length * 2)];
+                }
+                System.arraycopy(name, offset, previous, 0, nameLength);
+                previousLength = nameLength;
+            }
+            count++;
+        }
+
+        private void append(byte[] bytes, int offset, int bytesLength) {
+            ensure(bytesLength);
+            System.arraycopy(bytes, offset, arena, length, bytesLength);
+            length += bytesLength;
+        }
+
+        private void ensure(int size) {
+            if (arena.length - length < size) {
+                arena = Arrays.copyOf(arena, Math.max(length + size, arena.length * 2));
+            }
+        }
+
+        private AlbumIndex build() {
+            offsets[count] = length;
+            return new AlbumIndex(length == arena.length ? arena : Arrays.copyOf(arena, length), offsets,
+                    prefixCompressed);
+        }
+    }
+}
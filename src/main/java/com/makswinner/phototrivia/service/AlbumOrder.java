@@ -0,0 +1,185 @@
+package com.makswinner.phototrivia.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Photos of an {@link AlbumIndex} in a {@link SortOrder}, kept as a permutation of index positions and its
+ * inverse, so that listing and navigation in any order take the same array lookups as in name order.
+ * Methods mirror those of {@link AlbumIndex}, with positions in this order instead of positions by name.
+ */
+public final class AlbumOrder {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final AlbumIndex photos;
+    private final SortOrder sortOrder;
+    private final long version;
+
+    /**
+     * Index position of the photo at every position in this order, null in name order.
+     */
+    private final int[] positions;
+
+    /**
+     * Position in this order of the photo at every index position, null in name order.
+     */
+    private final int[] ranks;
+
+    private AlbumOrder(AlbumIndex photos, SortOrder sortOrder, long version, int[] positions, int[] ranks) {
+        this.photos = photos;
+        this.sortOrder = sortOrder;
+        this.version = version;
+        this.positions = positions;
+        this.ranks = ranks;
+    }
+
+    static AlbumOrder byName(AlbumIndex photos) {
+        return new AlbumOrder(photos, SortOrder.NAME, 0, null, null);
+    }
+
+    /**
+     * @param keys sort key of the photo at every index position, photos with equal keys stay in name order
+     */
+    static AlbumOrder of(AlbumIndex photos, SortOrder sortOrder, long[] keys) {
+        int[] positions = sort(keys);
+        int[] ranks = new int[positions.length];
+        for (int rank = 0; rank < positions.length; rank++) {
+            ranks[positions[rank]] = rank;
+        }
+        return new AlbumOrder(photos, sortOrder, VERSIONS.incrementAndGet(), positions, ranks);
+    }
+
+    /**
+     * @return the order photos are in, {@link SortOrder#NAME} while the requested order is not sorted yet
+     */
+    public SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    /**
+     * @return 0 in name order, otherwise a number that differs between all orders created by this process;
+     * together with {@link AlbumIndex#getVersion()} it changes with every change of the listed photos
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return version of the underlying index
+     */
+    public long getIndexVersion() {
+        return photos.getVersion();
+    }
+
+    public int size() {
+        return photos.size();
+    }
+
+    /**
+     * @return URL-encoded photo name at <code>position</code> in this order
+     */
+    public String get(int position) {
+        return photos.get(toIndex(position));
+    }
+
+    /**
+     * @return raw photo name at <code>position</code> in this order
+     */
+    public String getName(int position) {
+        return photos.getName(toIndex(position));
+    }
+
+    /**
+     * @param photo URL-encoded photo name
+     */
+    public int indexOf(String photo) {
+        return fromIndex(photos.indexOf(photo));
+    }
+
+    /**
+     * @param name raw file name
+     */
+    public int indexOfName(String name) {
+        return fromIndex(photos.indexOfName(name));
+    }
+
+    /**
+     * @see AlbumIndex#pageStart(int, int)
+     */
+    public int pageStart(int page, int pageSize) {
+        return photos.pageStart(page, pageSize);
+    }
+
+    /**
+     * @param name raw file name
+     * @return position of the first photo after <code>name</code>; in orders other than by name a photo that
+     * is no longer in the album has no place, so the listing starts over at 0
+     */
+    public int positionAfter(String name) {
+        if (positions == null) {
+            return photos.positionAfter(name);
+        }
+        int position = indexOfName(name);
+        return position != AlbumIndex.NOT_FOUND ? position + 1 : 0;
+    }
+
+    /**
+     * @return the photo after <code>current</code>, or the first photo when it is the last one or unknown
+     */
+    public String next(String current) {
+        int position = indexOf(current);
+        return get(position != AlbumIndex.NOT_FOUND && position + 1 < size() ? position + 1 : 0);
+    }
+
+    /**
+     * @return the photo before <code>current</code>, the last photo when it is the first one,
+     * or the first photo when it is unknown
+     */
+    public String previous(String current) {
+        int position = indexOf(current);
+        if (position == AlbumIndex.NOT_FOUND) {
+            return get(0);
+        }
+        return get(position > 0 ? position - 1 : size() - 1);
+    }
+
+    private int toIndex(int position) {
+        return positions != null ? positions[position] : position;
+    }
+
+    private int fromIndex(int position) {
+        return ranks != null && position != AlbumIndex.NOT_FOUND ? ranks[position] : position;
+    }
+
+    /**
+     * Stable bottom-up merge sort of index positions by key, without boxing.
+     */
+    private static int[] sort(long[] keys) {
+        int[] sorted = new int[keys.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+        }
+        int[] merged = new int[keys.length];
+        for (int width = 1; width < keys.length; width *= 2) {
+            for (int low = 0; low < keys.length; low += 2 * width) {
+                int middle = Math.min(low + width, keys.length);
+                int high = Math.min(low + 2 * width, keys.length);
+                int left = low;
+                int right = middle;
+                int at = low;
+                while (left < middle && right < high) {
+                    merged[at++] = keys[sorted[right]] < keys[sorted[left]] ? sorted[right++] : sorted[left++];
+                }
+                while (left < middle) {
+                    merged[at++] = sorted[left++];
+                }
+                while (right < high) {
+                    merged[at++] = sorted[right++];
+                }
+            }
+            int[] swap = sorted;
+            sorted = merged;
+            merged = swap;
+        }
+        return sorted;
+    }
+}
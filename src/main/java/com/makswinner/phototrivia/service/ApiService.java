@@ -0,0 +1,265 @@
+package com.makswinner.phototrivia.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Read-only JSON views of albums, album photos and single photos for photo frames and apps. Responses are written
+ * with a streaming generator and carry ETags derived from catalog versions, so polling clients mostly get 304.
+ * Albums the user may not see are reported as not found.
+ */
+@Service
+public class ApiService {
+    private static final String CONTENT_TYPE_JSON = "application/json;charset=UTF-8";
+    private static final String CACHE_CONTROL_REVALIDATE = "private, no-cache";
+    private static final DateTimeFormatter CAPTURE_TIME = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+    /**
+     * Versions restart with the process, the epoch keeps tags of different runs apart.
+     */
+    private static final String EPOCH = Long.toHexString(new SecureRandom().nextLong());
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private RenderingService renderingService;
+
+    @Autowired
+    private SortService sortService;
+
+    @Autowired
+    private SearchService searchService;
+
+    @Autowired
+    private MediaTypes mediaTypes;
+
+    @Value(value = "${albums.path}")
+    private String albumsPathRaw;
+
+    @Value(value = "${albums.page.size}")
+    private int albumPageSize;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    public void serveAlbums(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        AlbumAccess albumAccess = AlbumAccess.current();
+        long version = albumCatalog.getAlbumsVersion();
+        List<String> albums = albumAccess.filter(albumCatalog.getAlbums());
+        String eTag = getETag(version + "-" + Integer.toHexString(albumAccess.getAuthority().hashCode()));
+        if (isNotModified(request, response, eTag)) {
+            return;
+        }
+        try (JsonGenerator json = startJson(response)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("albums");
+            for (String album : albums) {
+                json.writeString(album);
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * @param page 1-based page number, used when <code>after</code> is null
+     * @param after raw name of the last photo the client has already seen, the page starts with the next one
+     * @param sort order of photos, see {@link SortService#getSortOrder(String)}; the response names the order
+     * it is in, which is by name while the album is being sorted
+     */
+    public void serveAlbum(String album, int page, String after, String sort, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+        AlbumOrder photos = findAllowedAlbum(album, sort);
+        if (photos == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        int from = after != null ? photos.positionAfter(after) : photos.pageStart(page, albumPageSize);
+        int to = albumPageSize > 0 ? Math.min(from + albumPageSize, photos.size()) : photos.size();
+        String eTag = getETag(getVersion(photos) + "-" + from + "-" + to);
+        if (isNotModified(request, response, eTag)) {
+            return;
+        }
+        try (JsonGenerator json = startJson(response)) {
+            json.writeStartObject();
+            json.writeStringField("album", album);
+            json.writeStringField("sort", photos.getSortOrder().getParameter());
+            json.writeNumberField("count", photos.size());
+            json.writeNumberField("offset", from);
+            json.writeStringField("mediaUrl", getMediaUrl(album, ""));
+            json.writeStringField("thumbnailUrl", getThumbnailUrl(album, ""));
+            json.writeArrayFieldStart("photos");
+            for (int i = from; i < to; i++) {
+                json.writeString(photos.getName(i));
+            }
+            json.writeEndArray();
+            if (to < photos.size()) {
+                json.writeStringField("after", photos.getName(to - 1));
+            }
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * @param photo raw (not encoded) photo name
+     * @param sort order that position and neighbours are in, see {@link SortService#getSortOrder(String)}
+     * @throws java.util.concurrent.RejectedExecutionException when media processing is saturated
+     */
+    public void servePhoto(String album, String photo, String sort, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+        AlbumOrder photos = findAllowedAlbum(album, sort);
+        int position = photos != null ? photos.indexOfName(photo) : AlbumIndex.NOT_FOUND;
+        if (position == AlbumIndex.NOT_FOUND) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String encoded = photos.get(position);
+        boolean video = mediaTypes.isVideo(photo);
+        PhotoMetadata metadata = PhotoMetadata.UNKNOWN;
+        String eTag = null;
+        if (video) {
+            File file = new File(new File(albumsPathRaw, album), photo);
+            eTag = getETag(getVersion(photos), file.lastModified(), file.length());
+        } else {
+            try {
+                metadata = metadataService.getMetadata(album, photo);
+                eTag = getETag(getVersion(photos), metadata.getLastModified(), metadata.getLength());
+            } catch (IOException e) {
+                //silently swallow, sent without metadata and without a tag
+            }
+        }
+        if (eTag != null && isNotModified(request, response, eTag)) {
+            return;
+        }
+        try (JsonGenerator json = startJson(response)) {
+            json.writeStartObject();
+            json.writeStringField("album", album);
+            json.writeStringField("name", photo);
+            json.writeNumberField("position", position + 1);
+            json.writeNumberField("count", photos.size());
+            json.writeStringField("previous", photos.getName(position > 0 ? position - 1 : photos.size() - 1));
+            json.writeStringField("next", photos.getName((position + 1) % photos.size()));
+            json.writeStringField("mediaUrl", getMediaUrl(album, encoded));
+            json.writeBooleanField("video", video);
+            if (!video) {
+                json.writeStringField("thumbnailUrl", getThumbnailUrl(album, encoded));
+                json.writeNumberField("orientation", metadata.getOrientation());
+                json.writeNumberField("width", metadata.getWidth());
+                json.writeNumberField("height", metadata.getHeight());
+                if (metadata.getCaptureTime() != 0) {
+                    json.writeStringField("captureTime", CAPTURE_TIME.format(
+                            LocalDateTime.ofEpochSecond(metadata.getCaptureTime(), 0, ZoneOffset.UTC)));
+                }
+            }
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Photos of albums the user may see, see {@link SearchService#search}; answered with 400 when there is nothing
+     * to search for or a date is malformed, and with 404 when search is off.
+     */
+    public void serveSearch(String text, boolean prefix, String from, String to, HttpServletResponse response)
+            throws IOException {
+        if (!searchService.isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        SearchService.Results results;
+        try {
+            results = searchService.search(AlbumAccess.current(), text, prefix, from, to);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL_REVALIDATE);
+        try (JsonGenerator json = startJson(response)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("photos");
+            for (SearchService.Hit hit : results.getHits()) {
+                json.writeStartObject();
+                json.writeStringField("album", hit.getAlbum());
+                json.writeStringField("name", hit.getName());
+                json.writeStringField("photoUrl", renderingService.getPhotoUrl(
+                        hit.getAlbum(), hit.getPhoto(), false, sortService.getDefaultOrder()));
+                json.writeStringField("mediaUrl", getMediaUrl(hit.getAlbum(), hit.getPhoto()));
+                if (!mediaTypes.isVideo(hit.getName())) {
+                    json.writeStringField("thumbnailUrl", getThumbnailUrl(hit.getAlbum(), hit.getPhoto()));
+                }
+                if (hit.getCaptureTime() != 0) {
+                    json.writeStringField("captureTime", CAPTURE_TIME.format(
+                            LocalDateTime.ofEpochSecond(hit.getCaptureTime(), 0, ZoneOffset.UTC)));
+                }
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeBooleanField("truncated", results.isTruncated());
+            json.writeNumberField("pending", results.getPending());
+            json.writeEndObject();
+        }
+    }
+
+    private AlbumOrder findAllowedAlbum(String album, String sort) {
+        if (!albumCatalog.containsAlbum(album) || !AlbumAccess.current().allows(album)) {
+            return null;
+        }
+        return sortService.getOrder(album, sortService.getSortOrder(sort));
+    }
+
+    private String getVersion(AlbumOrder photos) {
+        return photos.getIndexVersion() + "." + photos.getVersion();
+    }
+
+    private String getETag(String version) {
+        return "W/\"" + EPOCH + "-" + version + "\"";
+    }
+
+    private String getETag(String albumVersion, long lastModified, long length) {
+        return getETag(albumVersion + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(length));
+    }
+
+    private boolean isNotModified(HttpServletRequest request, HttpServletResponse response, String eTag) {
+        response.setHeader(HttpHeaders.ETAG, eTag);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL_REVALIDATE);
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && MediaService.matches(ifNoneMatch, eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    private JsonGenerator startJson(HttpServletResponse response) throws IOException {
+        response.setContentType(CONTENT_TYPE_JSON);
+        return jsonFactory.createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+    }
+
+    /**
+     * @param photo URL-encoded photo name, empty for the prefix of all photos of the album
+     */
+    private String getMediaUrl(String album, String photo) {
+        return "/" + renderingService.getBaseGalleryDir() + "/" + album + "/" + photo;
+    }
+
+    private String getThumbnailUrl(String album, String photo) {
+        return "/thumb/" + album + "/" + photo;
+    }
+}
@@ -0,0 +1,179 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Static assets under <code>static/</code>, served from memory under URLs that contain the hash of their content,
+ * e.g. <code>/assets/swipe.&lt;MD5 hex&gt;.js</code>, so browsers keep them without ever asking
+ * again: a changed asset gets a new URL, which {@link #rewrite(String)} puts into the templates on startup.
+ * Gzip and brotli variants precompressed by the build go to clients that accept them; assets the build did not
+ * compress, e.g. when running from an IDE, are gzipped once here.
+ */
+@Service
+public class AssetService {
+    public static final String URL_ASSETS = "/assets/";
+    private static final String LOCATION = "static/";
+    private static final String GZIP = "gzip";
+    private static final String BROTLI = "br";
+    private static final String CACHE_CONTROL_IMMUTABLE = "private, max-age=31536000, immutable";
+
+    private static final class Asset {
+        private final String contentType;
+        private final byte[] content;
+        private final byte[] gzip;
+        private final byte[] brotli;
+
+        /**
+         * @param gzip null if it is not smaller than the content
+         * @param brotli null if the build did not compress it
+         */
+        private Asset(String contentType, byte[] content, byte[] gzip, byte[] brotli) {
+            this.contentType = contentType;
+            this.content = content;
+            this.gzip = gzip;
+            this.brotli = brotli;
+        }
+    }
+
+    @Autowired
+    private AsyncResponseWriter asyncResponseWriter;
+
+    /**
+     * By fingerprinted file name.
+     */
+    private final Map<String, Asset> assets = new HashMap<>();
+
+    /**
+     * Fingerprinted URL by plain URL, e.g. <code>/swipe.js</code>.
+     */
+    private final Map<String, String> urls = new HashMap<>();
+
+    @PostConstruct
+    private void init() throws IOException {
+        PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+        for (Resource resource : resolver.getResources("classpath:" + LOCATION + "*")) {
+            String name = resource.getFilename();
+            if (name == null || name.endsWith(".gz") || name.endsWith(".br") || !resource.isReadable()) {
+                continue;
+            }
+            byte[] content = read(resource);
+            byte[] gzip = read(resource.createRelative(name + ".gz"));
+            if (gzip == null) {
+                gzip = gzip(content);
+            }
+            String contentType = MediaTypeFactory.getMediaType(name)
+                    .orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+            String file = fingerprint(name, DigestUtils.md5DigestAsHex(content));
+            assets.put(file, new Asset(contentType, content, gzip.length < content.length ? gzip : null,
+                    read(resource.createRelative(name + ".br"))));
+            urls.put("/" + name, URL_ASSETS + file);
+        }
+    }
+
+    /**
+     * @return <code>html</code> with quoted plain asset URLs, e.g. <code>"/swipe.js"</code>, replaced by
+     * fingerprinted ones
+     */
+    public String rewrite(String html) {
+        for (Map.Entry<String, String> url : urls.entrySet()) {
+            html = html.replace('"' + url.getKey() + '"', '"' + url.getValue() + '"');
+        }
+        return html;
+    }
+
+    /**
+     * @param file fingerprinted file name, the last segment of the URL
+     */
+    public void serve(String file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Asset asset = assets.get(file);
+        if (asset == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        byte[] body = asset.content;
+        if (asset.brotli != null && accepts(acceptEncoding, BROTLI)) {
+            body = asset.brotli;
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, BROTLI);
+        } else if (asset.gzip != null && accepts(acceptEncoding, GZIP)) {
+            body = asset.gzip;
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+        }
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL_IMMUTABLE);
+        response.setContentType(asset.contentType);
+        response.setContentLength(body.length);
+        asyncResponseWriter.write(request, response, body);
+    }
+
+    private static String fingerprint(String name, String hash) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) + '.' + hash + name.substring(dot) : name + '.' + hash;
+    }
+
+    /**
+     * @return whether the <code>Accept-Encoding</code> header lists the coding without <code>q=0</code>
+     */
+    private static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String accepted : acceptEncoding.split(",")) {
+            String[] parameters = accepted.split(";");
+            if (!parameters[0].trim().equalsIgnoreCase(coding)) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].replace(" ", "");
+                if (parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return content of the resource, null if it does not exist
+     */
+    private static byte[] read(Resource resource) throws IOException {
+        if (!resource.exists()) {
+            return null;
+        }
+        try (InputStream input = resource.getInputStream()) {
+            return StreamUtils.copyToByteArray(input);
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(content);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,249 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes response bodies with Servlet 3.1 non-blocking I/O: the request thread only starts the response and
+ * returns to the pool, the body is written whenever the connection can take more, so a slow client holds a
+ * small buffer and a socket instead of a thread. Headers are committed on the request thread, while filters
+ * that act on commit, e.g. saving the security context to the session, still see the request.
+ * Falls back to blocking writes when disabled or when the request does not support async processing.
+ */
+@Service
+public class AsyncResponseWriter {
+    private static final int BYTES_IN_KB = 1024;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value(value = "${async.writes:true}")
+    private boolean enabled;
+
+    @Value(value = "${async.writes.buffer.kb:16}")
+    private int bufferKb;
+
+    private final AtomicInteger writing = new AtomicInteger();
+    private Metrics.Counter started;
+    private Metrics.Counter failed;
+
+    @PostConstruct
+    private void init() {
+        metrics.gauge("phototrivia_async_writes", "Responses being written with non-blocking I/O", "", writing::get);
+        started = metrics.counter("phototrivia_async_writes_total",
+                "Responses written with non-blocking I/O, by outcome", "result=\"started\"");
+        failed = metrics.counter("phototrivia_async_writes_total",
+                "Responses written with non-blocking I/O, by outcome", "result=\"failed\"");
+    }
+
+    /**
+     * Writes <code>content</code> as the body, which must not change afterwards.
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response, byte[] content) throws IOException {
+        if (!isAsync(request)) {
+            response.getOutputStream().write(content);
+            return;
+        }
+        start(request, response, new Write(null) {
+            private boolean written;
+
+            @Override
+            boolean writeNext(ServletOutputStream output) throws IOException {
+                if (written) {
+                    return false;
+                }
+                written = true;
+                output.write(content);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Writes <code>count</code> bytes of <code>file</code> from <code>position</code> as the body.
+     *
+     * @param sentBytes counts the bytes handed to the connection
+     * @param done called once when the body is written or writing failed, on the thread where that happens
+     * @return whether the body is written asynchronously, if not it is written and <code>done</code> not called
+     */
+    public boolean write(HttpServletRequest request, HttpServletResponse response, Path file, long position,
+                         long count, Metrics.Counter sentBytes, Runnable done) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        if (!isAsync(request)) {
+            try (FileChannel source = channel) {
+                copy(source, position, count, response.getOutputStream(), sentBytes);
+            }
+            return false;
+        }
+        try {
+            start(request, response, new FileWrite(channel, position, count, sentBytes, done));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Writes <code>count</code> bytes of <code>file</code> from <code>position</code> to <code>output</code>,
+     * blocking, in the same chunks as non-blocking writes; <code>file</code> is left open.
+     *
+     * @param sentBytes counts the bytes handed to the connection
+     */
+    public void copy(FileChannel file, long position, long count, ServletOutputStream output,
+                     Metrics.Counter sentBytes) throws IOException {
+        FileWrite write = new FileWrite(file, position, count, sentBytes, null);
+        while (write.writeNext(output)) {
+            //until the range is written
+        }
+    }
+
+    private boolean isAsync(HttpServletRequest request) {
+        return enabled && request.isAsyncSupported() && !request.isAsyncStarted();
+    }
+
+    private void start(HttpServletRequest request, HttpServletResponse response, Write write) throws IOException {
+        response.flushBuffer();
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(0);//idle connections are closed by the server's idle timeout
+        write.context = context;
+        write.output = response.getOutputStream();
+        writing.incrementAndGet();
+        started.increment();
+        context.addListener(write);
+        write.output.setWriteListener(write);
+    }
+
+    /**
+     * Writes chunks while the connection is ready and completes the response after the last one.
+     */
+    private abstract class Write implements WriteListener, AsyncListener {
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final Runnable done;
+        private AsyncContext context;
+        private ServletOutputStream output;
+
+        Write(Runnable done) {
+            this.done = done;
+        }
+
+        /**
+         * @return false if there is nothing left to write
+         */
+        abstract boolean writeNext(ServletOutputStream output) throws IOException;
+
+        void close() {
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while (output.isReady()) {
+                if (!writeNext(output)) {
+                    context.complete();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            failed.increment();
+            context.complete();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            context.complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                writing.decrementAndGet();
+                close();
+                if (done != null) {
+                    done.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the file into a buffer that is reused once the connection took the previous chunk.
+     */
+    private final class FileWrite extends Write {
+        private final FileChannel file;
+        private final Metrics.Counter sentBytes;
+        private final long end;
+        private long position;
+        private ByteBuffer buffer;
+
+        private FileWrite(FileChannel file, long position, long count, Metrics.Counter sentBytes, Runnable done) {
+            super(done);
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+            this.sentBytes = sentBytes;
+        }
+
+        @Override
+        boolean writeNext(ServletOutputStream output) throws IOException {
+            if (position >= end) {
+                return false;
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate((int) Math.min(bufferKb * BYTES_IN_KB, end - position));
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = file.read(buffer, position);
+            if (read <= 0) {
+                throw new IOException("File ended before " + end);
+            }
+            position += read;
+            output.write(buffer.array(), 0, read);
+            sentBytes.add(read);
+            return true;
+        }
+
+        @Override
+        void close() {
+            buffer = null;
+            try {
+                file.close();
+            } catch (IOException e) {
+                //silently swallow, nothing was written to it
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.makswinner.phototrivia.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Album photo lists persisted between runs. The file is memory-mapped and only its album headers are read
+ * on open, an album index is copied out when the album is first requested and only if the album directory
+ * still has the modification time recorded with it.
+ * <p>
+ * Layout: magic, version, album count, then per album its name, directory modification time, photo count,
+ * length of the photo block and the block holding the index arena as written by {@link AlbumIndex}.
+ * Strings are UTF-8 prefixed by an unsigned short length, numbers are big-endian.
+ */
+final class CatalogSnapshot {
+    static final CatalogSnapshot EMPTY = new CatalogSnapshot(null, Collections.emptyMap());
+
+    /**
+     * Recorded for directories changed too recently to trust their modification time, e.g. on file systems
+     * with two second resolution, so that they are scanned again.
+     */
+    static final long NOT_VALIDATED = Long.MIN_VALUE;
+
+    private static final int MAGIC = 0x50544341;
+    private static final int VERSION = 2;
+
+    private static final class Album {
+        private final long modified;
+        private final int count;
+        private final int offset;
+        private final int length;
+
+        private Album(long modified, int count, int offset, int length) {
+            this.modified = modified;
+            this.count = count;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private final Map<String, Album> albums;
+
+    private CatalogSnapshot(MappedByteBuffer buffer, Map<String, Album> albums) {
+        this.buffer = buffer;
+        this.albums = albums;
+    }
+
+    /**
+     * @return snapshot stored in <code>file</code>, {@link #EMPTY} if there is none or it cannot be read
+     */
+    static CatalogSnapshot open(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return EMPTY;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return EMPTY;
+            }
+            int count = buffer.getInt();
+            Map<String, Album> albums = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String name = readString(buffer);
+                long modified = buffer.getLong();
+                int photos = buffer.getInt();
+                int length = buffer.getInt();
+                albums.put(name, new Album(modified, photos, buffer.position(), length));
+                buffer.position(buffer.position() + length);
+            }
+            return new CatalogSnapshot(buffer, albums);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            return EMPTY;//silently swallow, albums are scanned instead
+        }
+    }
+
+    /**
+     * @return whether the album is stored with a modification time that can be validated
+     */
+    boolean contains(String album) {
+        Album stored = albums.get(album);
+        return stored != null && stored.modified != NOT_VALIDATED;
+    }
+
+    /**
+     * @param modified current modification time of the album directory
+     * @return the stored index, or null if the album is not stored or its directory changed since
+     */
+    AlbumIndex read(String album, long modified) {
+        Album stored = albums.get(album);
+        if (stored == null || stored.modified == NOT_VALIDATED || stored.modified != modified) {
+            return null;
+        }
+        ByteBuffer photos = buffer.duplicate();
+        photos.position(stored.offset);
+        photos.limit(stored.offset + stored.length);
+        try {
+            AlbumIndex index = AlbumIndex.readFrom(photos);
+            return index.size() == stored.count ? index : null;
+        } catch (IllegalArgumentException e) {
+            return null;//damaged, scan instead
+        }
+    }
+
+    /**
+     * Writes the given albums to <code>file</code>, replacing it atomically. Albums that are neither loaded
+     * nor valid in this snapshot are left out.
+     *
+     * @param loadedAlbums album indexes, written with the directory modification time they were scanned at
+     */
+    void write(Path file, List<String> albumNames, Map<String, AlbumIndex> loadedAlbums,
+               Map<String, Long> scannedModified) throws IOException {
+        Map<String, AlbumIndex> loaded = new HashMap<>(loadedAlbums);
+        Map<String, Long> modified = new HashMap<>(scannedModified);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        DataOutputStream blockOutput = new DataOutputStream(block);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary)))) {
+            int count = 0;
+            for (String album : albumNames) {
+                if (isWritable(album, loaded, modified)) {
+                    count++;
+                }
+            }
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(count);
+            for (String album : albumNames) {
+                AlbumIndex photos = loaded.get(album);
+                Long scanned = modified.get(album);
+                if (photos != null && scanned != null) {
+                    block.reset();
+                    photos.writeTo(blockOutput);
+                    writeAlbum(output, album, scanned, photos.size(), block.size());
+                    block.writeTo(output);
+                } else if (albums.containsKey(album) && albums.get(album).modified != NOT_VALIDATED) {
+                    Album stored = albums.get(album);
+                    writeAlbum(output, album, stored.modified, stored.count, stored.length);
+                    copy(stored, output);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean isWritable(String album, Map<String, AlbumIndex> loaded, Map<String, Long> modified) {
+        return loaded.containsKey(album) && modified.containsKey(album)
+                || albums.containsKey(album) && albums.get(album).modified != NOT_VALIDATED;
+    }
+
+    private void writeAlbum(DataOutputStream output, String album, long modified, int count, int length)
+            throws IOException {
+        writeString(output, album);
+        output.writeLong(modified);
+        output.writeInt(count);
+        output.writeInt(length);
+    }
+
+    private void copy(Album stored, OutputStream output) throws IOException {
+        ByteBuffer block = buffer.duplicate();
+        block.position(stored.offset);
+        byte[] chunk = new byte[Math.min(stored.length, 64 * 1024)];
+        int remaining = stored.length;
+        while (remaining > 0) {
+            int length = Math.min(remaining, chunk.length);
+            block.get(chunk, 0, length);
+            output.write(chunk, 0, length);
+            remaining -= length;
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("String past the end of the snapshot");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
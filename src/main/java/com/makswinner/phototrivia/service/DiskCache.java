@@ -0,0 +1,194 @@
+package com.makswinner.phototrivia.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Files created on first request and kept in a size-capped directory, evicting the least recently used ones.
+ * Concurrent requests for the same file share a single creation.
+ */
+final class DiskCache {
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Creates the content of a cached file.
+     */
+    interface Writer {
+        /**
+         * @param temporary file to write, moved into place afterwards
+         * @return false if there is nothing to cache, e.g. the source is not a readable image
+         */
+        boolean write(File temporary) throws IOException;
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Metrics.CacheCounters cacheCounters;
+    private final Map<File, CompletableFuture<File>> pending = new ConcurrentHashMap<>();
+    private final LinkedHashMap<File, Long> cached = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    DiskCache(Path directory, long maxBytes, Metrics.CacheCounters cacheCounters) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.cacheCounters = cacheCounters;
+    }
+
+    /**
+     * Creates the directory and takes over files cached before a restart, their recency approximated by their
+     * modification time.
+     */
+    void load() throws IOException {
+        Files.createDirectories(directory);
+        List<File> files;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            files = paths.map(Path::toFile)
+                    .filter(file -> file.isFile() && !file.getName().endsWith(TEMPORARY_SUFFIX))
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .collect(Collectors.toList());
+        }
+        synchronized (cached) {
+            files.forEach(file -> {
+                cached.put(file, file.length());
+                cachedBytes += file.length();
+            });
+            evict();
+        }
+    }
+
+    /**
+     * @return version of the source of a cached file, its modification time and size, to put into the name of
+     * the cached file so that a replaced source gets a new one while the old one is evicted in time
+     * @throws IOException if the source cannot be read, e.g. it was deleted
+     */
+    static String version(Path source) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        return Long.toHexString(attributes.lastModifiedTime().toMillis()) + "-" + Long.toHexString(attributes.size());
+    }
+
+    /**
+     * @param path location of the file relative to the cache directory
+     */
+    File resolve(String... path) {
+        Path file = directory;
+        for (String segment : path) {
+            file = file.resolve(segment);
+        }
+        return file.toFile();
+    }
+
+    /**
+     * @return the cached file, created by <code>writer</code> if it is not there yet,
+     * or null if the writer had nothing to cache
+     */
+    File get(File file, Writer writer) throws IOException {
+        if (isCached(file)) {
+            cacheCounters.hit();
+            return file;
+        }
+        cacheCounters.miss();
+        CompletableFuture<File> created = new CompletableFuture<>();
+        CompletableFuture<File> existing = pending.putIfAbsent(file, created);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            File result = isCached(file) ? file : create(file, writer);
+            created.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(file);
+        }
+    }
+
+    /**
+     * Like {@link #get(File, Writer)}, but opens the file, so that evicting it afterwards does not affect readers;
+     * a file evicted before it could be opened is created again.
+     *
+     * @return channel to read the cached file, to be closed by the caller, or null if the writer had nothing to cache
+     */
+    FileChannel open(File file, Writer writer) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            File cachedFile = get(file, writer);
+            if (cachedFile == null) {
+                return null;
+            }
+            try {
+                return FileChannel.open(cachedFile.toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                synchronized (cached) {
+                    Long length = cached.remove(file);
+                    cachedBytes -= length != null ? length : 0;
+                }
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private File await(CompletableFuture<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + directory.getFileName(), e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to create file in " + directory.getFileName(), e.getCause());
+        }
+    }
+
+    boolean isCached(File file) {
+        synchronized (cached) {
+            return cached.get(file) != null;
+        }
+    }
+
+    private File create(File file, Writer writer) throws IOException {
+        Files.createDirectories(file.toPath().getParent());
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        if (!writer.write(temporary)) {
+            Files.deleteIfExists(temporary.toPath());
+            return null;
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        synchronized (cached) {
+            Long previous = cached.put(file, file.length());
+            cachedBytes += file.length() - (previous != null ? previous : 0);
+            evict();
+        }
+        return file;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<File, Long>> eldest = cached.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<File, Long> entry = eldest.next();
+            cachedBytes -= entry.getValue();
+            eldest.remove();
+            if (!entry.getKey().delete()) {
+                entry.getKey().deleteOnExit();
+            }
+        }
+    }
+}
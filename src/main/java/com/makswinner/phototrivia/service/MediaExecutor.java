@@ -0,0 +1,110 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size pool for CPU-heavy media work of requests (decoding, scaling, metadata parsing), so that a burst of
+ * such work cannot occupy every request thread. New tasks are rejected with {@link RejectedExecutionException} once
+ * <code>media.queue.size</code> tasks are waiting, instead of queueing without limit.
+ */
+@Service
+public class MediaExecutor {
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value(value = "${media.workers}")
+    private int workers;
+
+    @Value(value = "${media.queue.size}")
+    private int queueSize;
+
+    @Value(value = "${media.retry.after.seconds}")
+    private int retryAfterSeconds;
+
+    private Metrics.Counter rejected;
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threads = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+                    Thread thread = new Thread(runnable, "media-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        rejected = metrics.counter("phototrivia_media_rejected_total",
+                "Media tasks rejected because the queue was full", "");
+        metrics.gauge("phototrivia_media_queue_depth", "Media tasks waiting for a worker", "", this::getQueueDepth);
+        metrics.gauge("phototrivia_media_active_workers", "Media workers running a task", "", this::getActiveCount);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @throws RejectedExecutionException when the queue is full
+     */
+    public <T> Future<T> submit(Callable<T> callable) {
+        try {
+            return executor.submit(callable);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the task on the pool and waits for its result.
+     *
+     * @throws RejectedExecutionException when the queue is full
+     */
+    public <T> T call(Callable<T> callable) throws IOException {
+        Future<T> future = submit(callable);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for media task", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Media task failed", cause);
+        }
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+}
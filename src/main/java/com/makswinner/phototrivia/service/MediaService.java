@@ -0,0 +1,270 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Serves original photos and videos with strong ETags, long-lived caching, conditional GET and byte ranges.
+ * Full and single range responses are written with non-blocking I/O by {@link AsyncResponseWriter}, so a slow
+ * download does not hold a request thread; multipart ranges, which are rare, are written blocking.
+ */
+@Service
+public class MediaService {
+    private static final String CACHE_CONTROL_IMMUTABLE = "private, max-age=31536000, immutable";
+    private static final String BYTES_UNIT = "bytes";
+    private static final String RANGE_PREFIX = BYTES_UNIT + "=";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final String HEAD = "HEAD";
+    private static final String CRLF = "\r\n";
+    private static final int MAX_RANGES = 16;
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private AsyncResponseWriter asyncResponseWriter;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value(value = "${albums.path}")
+    private String albumsPathRaw;
+
+    private Path albumsPath;
+    private Metrics.Timer serveTimer;
+    private Metrics.Counter sentBytes;
+
+    @PostConstruct
+    private void init() {
+        albumsPath = Paths.get(albumsPathRaw);
+        serveTimer = metrics.timer("phototrivia_media_seconds",
+                "Serving originals and videos, including writing them", "");
+        sentBytes = metrics.counter("phototrivia_media_sent_bytes_total", "Bytes of originals and videos sent", "");
+    }
+
+    /**
+     * @param photo raw (not encoded) photo name
+     */
+    public void serve(String album, String photo, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long start = System.nanoTime();
+        boolean async = false;
+        try {
+            async = doServe(album, photo, request, response, () -> serveTimer.recordSince(start));
+        } finally {
+            if (!async) {
+                serveTimer.recordSince(start);
+            }
+        }
+    }
+
+    /**
+     * @param done called when an asynchronous write ends
+     * @return whether the content is written asynchronously
+     */
+    private boolean doServe(String album, String photo, HttpServletRequest request, HttpServletResponse response,
+                            Runnable done) throws IOException {
+        if (!albumCatalog.containsAlbum(album)
+                || albumCatalog.getAlbum(album).indexOfName(photo) == AlbumIndex.NOT_FOUND) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        Path path = albumsPath.resolve(album).resolve(photo);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String eTag = getETag(attributes);
+        response.setHeader(HttpHeaders.ETAG, eTag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL_IMMUTABLE);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT);
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+        String contentType = request.getServletContext().getMimeType(photo);
+        contentType = contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        List<long[]> ranges = range != null && isRangeApplicable(request, eTag, lastModified)
+                ? parseRanges(range, length) : null;
+        if (ranges != null && ranges.isEmpty()) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return false;
+        }
+        boolean head = HEAD.equals(request.getMethod());
+        if (ranges == null) {
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            return !head && asyncResponseWriter.write(request, response, path, 0, length, sentBytes, done);
+        } else if (ranges.size() == 1) {
+            long[] single = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, getContentRange(single, length));
+            response.setContentLengthLong(single[1] - single[0] + 1);
+            return !head && asyncResponseWriter.write(request, response, path, single[0],
+                    single[1] - single[0] + 1, sentBytes, done);
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            sendMultipart(file, ranges, length, contentType, head, response);
+        }
+        return false;
+    }
+
+    private void sendMultipart(FileChannel file, List<long[]> ranges, long length, String contentType, boolean head,
+                               HttpServletResponse response) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            byte[] partHeader = (CRLF + "--" + boundary + CRLF
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + CRLF
+                    + HttpHeaders.CONTENT_RANGE + ": " + getContentRange(range, length) + CRLF + CRLF)
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range[1] - range[0] + 1;
+        }
+        byte[] end = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        contentLength += end.length;
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head) {
+            return;
+        }
+        ServletOutputStream output = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            output.write(partHeaders.get(i));
+            asyncResponseWriter.copy(file, range[0], range[1] - range[0] + 1, output, sentBytes);
+        }
+        output.write(end);
+    }
+
+    /**
+     * Identity of the file: its modification time, size and, where the file system has one, file key (inode).
+     */
+    private String getETag(BasicFileAttributes attributes) {
+        return "\"" + Long.toHexString(attributes.lastModifiedTime().toMillis())
+                + "-" + Long.toHexString(attributes.size())
+                + "-" + Integer.toHexString(Objects.hashCode(attributes.fileKey())) + "\"";
+    }
+
+    private boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, eTag);
+        }
+        long ifModifiedSince = getDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private boolean isRangeApplicable(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(eTag);
+        }
+        long ifRangeDate = getDateHeader(request, HttpHeaders.IF_RANGE);
+        return ifRangeDate >= 0 && lastModified / 1000 == ifRangeDate / 1000;
+    }
+
+    private long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    static boolean matches(String ifNoneMatch, String eTag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if ("*".equals(trimmed) || trimmed.equals(eTag) || trimmed.equals("W/" + eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return inclusive [first, last] byte positions, an empty list if no range is satisfiable,
+     * or null if the header should be ignored and the full content sent
+     */
+    private List<long[]> parseRanges(String header, long length) {
+        if (!header.startsWith(RANGE_PREFIX)) {
+            return null;
+        }
+        String[] specs = header.substring(RANGE_PREFIX.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            String trimmed = spec.trim();
+            int dash = trimmed.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(trimmed.substring(1));
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    first = Long.parseLong(trimmed.substring(0, dash));
+                    last = dash == trimmed.length() - 1 ? length - 1
+                            : Math.min(length - 1, Long.parseLong(trimmed.substring(dash + 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first > last) {
+                if (first < length) {
+                    return null;//syntactically invalid: last before first
+                }
+                continue;
+            }
+            ranges.add(new long[] { first, last });
+        }
+        return ranges;
+    }
+
+    private String getContentRange(long[] range, long length) {
+        return BYTES_UNIT + " " + range[0] + "-" + range[1] + "/" + length;
+    }
+}
@@ -0,0 +1,33 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tells videos from photos by the file name extensions configured in <code>extensions.video</code>.
+ */
+@Service
+public class MediaTypes {
+
+    @Value(value = "${extensions.video}")
+    private String videoExtensionsRaw;
+
+    private final Set<String> videoExtensions = new HashSet<>();
+
+    @PostConstruct
+    private void init() {
+        videoExtensions.addAll(Arrays.asList(videoExtensionsRaw.split(",")));
+    }
+
+    /**
+     * @param name raw or URL-encoded file name
+     */
+    public boolean isVideo(String name) {
+        return videoExtensions.contains(RenderingService.getFilenameExtensionLowerCase(name));
+    }
+}
@@ -0,0 +1,342 @@
+package com.makswinner.phototrivia.service;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.imaging.jpeg.JpegProcessingException;
+import com.drew.imaging.jpeg.JpegSegmentData;
+import com.drew.imaging.jpeg.JpegSegmentReader;
+import com.drew.imaging.jpeg.JpegSegmentType;
+import com.drew.lang.StreamReader;
+import com.drew.metadata.Directory;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.MetadataException;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.jpeg.JpegDirectory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Photo metadata cache keyed by album and photo, revalidated by file modification time and size.
+ * Entries are appended to a compact binary store under <code>data.path</code> and loaded back on startup,
+ * so photos are parsed once, not once per view or per restart. JPEG files are read only up to the
+ * image data: the first IFD, the EXIF sub-IFD it points to and the frame header.
+ */
+@Service
+public class MetadataService {
+    private static final String STORE_FILE = "metadata.bin";
+    private static final int STORE_MAGIC = 0x50544D44;
+    private static final int STORE_VERSION = 1;
+    private static final byte[] EXIF_PREAMBLE = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int EXIF_DATE_TIME_LENGTH = 19;
+    private static final DateTimeFormatter EXIF_DATE_TIME = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+    private static final List<JpegSegmentType> JPEG_SEGMENTS = Arrays.asList(
+            JpegSegmentType.APP1, JpegSegmentType.SOF0, JpegSegmentType.SOF1, JpegSegmentType.SOF2);
+
+    @Autowired
+    private MediaExecutor mediaExecutor;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value(value = "${albums.path}")
+    private String albumsPathRaw;
+
+    @Value(value = "${data.path}")
+    private String dataPathRaw;
+
+    @Value(value = "${metadata.cache.entries}")
+    private int maxEntries;
+
+    private Map<String, PhotoMetadata> cache;
+    private Path albumsPath;
+    private File storeFile;
+    private DataOutputStream store;
+    private Metrics.CacheCounters cacheCounters;
+    private Metrics.Timer readTimer;
+
+    @PostConstruct
+    private void init() throws IOException {
+        albumsPath = Paths.get(albumsPathRaw);
+        cacheCounters = metrics.cacheCounters("metadata");
+        readTimer = metrics.timer("phototrivia_metadata_read_seconds", "Reading metadata from photo files", "");
+        cache = new LinkedHashMap<String, PhotoMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PhotoMetadata> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        Path dataPath = Files.createDirectories(Paths.get(dataPathRaw));
+        storeFile = dataPath.resolve(STORE_FILE).toFile();
+        loadStore();
+        compactStore();
+        store = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile, true)));
+    }
+
+    @PreDestroy
+    private void destroy() throws IOException {
+        synchronized (cache) {
+            store.close();
+        }
+    }
+
+    /**
+     * @param photo raw (not encoded) photo name
+     * @throws java.util.concurrent.RejectedExecutionException when media processing is saturated
+     */
+    public PhotoMetadata getMetadata(String album, String photo) throws IOException {
+        File file = albumsPath.resolve(album).resolve(photo).toFile();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        String key = album + "/" + photo;
+        PhotoMetadata metadata;
+        synchronized (cache) {
+            metadata = cache.get(key);
+        }
+        if (metadata != null && metadata.isValidFor(lastModified, length)) {
+            cacheCounters.hit();
+            return metadata;
+        }
+        cacheCounters.miss();
+        PhotoMetadata read = mediaExecutor.call(() -> {
+            long start = System.nanoTime();
+            try {
+                return read(file, lastModified, length);
+            } finally {
+                readTimer.recordSince(start);
+            }
+        });
+        synchronized (cache) {
+            cache.put(key, read);
+            write(store, key, read);
+            store.flush();
+        }
+        return read;
+    }
+
+    /**
+     * For passes over whole albums: a cached entry if it is still valid, otherwise the photo is read on the calling
+     * thread and not cached, so that such a pass neither takes media workers nor evicts the photos being viewed.
+     *
+     * @param photo raw (not encoded) photo name
+     */
+    PhotoMetadata readMetadata(String album, String photo) {
+        File file = albumsPath.resolve(album).resolve(photo).toFile();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        PhotoMetadata metadata;
+        synchronized (cache) {
+            metadata = cache.get(album + "/" + photo);
+        }
+        if (metadata != null && metadata.isValidFor(lastModified, length)) {
+            return metadata;
+        }
+        long start = System.nanoTime();
+        try {
+            return read(file, lastModified, length);
+        } finally {
+            readTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * Later records of the same photo override earlier ones, damaged tails are ignored.
+     */
+    private void loadStore() {
+        if (!storeFile.isFile()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)))) {
+            if (input.readInt() != STORE_MAGIC || input.readInt() != STORE_VERSION) {
+                return;
+            }
+            while (true) {
+                String key = input.readUTF();
+                cache.put(key, new PhotoMetadata(input.readLong(), input.readLong(), input.readUnsignedByte(),
+                        input.readInt(), input.readInt(), input.readLong()));
+            }
+        } catch (EOFException e) {
+            //end of store
+        } catch (IOException e) {
+            //silently swallow, photos are parsed again
+        }
+    }
+
+    private void compactStore() throws IOException {
+        File temporary = new File(storeFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            output.writeInt(STORE_MAGIC);
+            output.writeInt(STORE_VERSION);
+            for (Map.Entry<String, PhotoMetadata> entry : new ArrayList<>(cache.entrySet())) {
+                write(output, entry.getKey(), entry.getValue());
+            }
+        }
+        Files.move(temporary.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void write(DataOutputStream output, String key, PhotoMetadata metadata) throws IOException {
+        output.writeUTF(key);
+        output.writeLong(metadata.getLastModified());
+        output.writeLong(metadata.getLength());
+        output.writeByte(metadata.getOrientation());
+        output.writeInt(metadata.getWidth());
+        output.writeInt(metadata.getHeight());
+        output.writeLong(metadata.getCaptureTime());
+    }
+
+    private PhotoMetadata read(File file, long lastModified, long length) {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            JpegSegmentData segments = JpegSegmentReader.readSegments(new StreamReader(input), JPEG_SEGMENTS);
+            int orientation = 0;
+            long captureTime = 0;
+            for (byte[] segment : segments.getSegments(JpegSegmentType.APP1)) {
+                if (startsWith(segment, EXIF_PREAMBLE)) {
+                    ByteBuffer tiff = ByteBuffer.wrap(segment, EXIF_PREAMBLE.length,
+                            segment.length - EXIF_PREAMBLE.length).slice();
+                    tiff.order(tiff.getShort(0) == TIFF_LITTLE_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                    int ifd0 = tiff.getInt(4);
+                    orientation = (int) readTag(tiff, ifd0, TAG_ORIENTATION);
+                    long exifIfd = readTag(tiff, ifd0, TAG_EXIF_IFD);
+                    captureTime = exifIfd > 0 ? readDateTime(tiff, (int) exifIfd, TAG_DATE_TIME_ORIGINAL) : 0;
+                    break;
+                }
+            }
+            byte[] frame = getFrameHeader(segments);
+            int height = frame != null ? (frame[1] & 0xFF) << 8 | frame[2] & 0xFF : 0;
+            int width = frame != null ? (frame[3] & 0xFF) << 8 | frame[4] & 0xFF : 0;
+            return new PhotoMetadata(lastModified, length, orientation, width, height, captureTime);
+        } catch (JpegProcessingException e) {
+            return readFully(file, lastModified, length);
+        } catch (IOException | RuntimeException e) {
+            return new PhotoMetadata(lastModified, length, 0, 0, 0, 0);//silently swallow
+        }
+    }
+
+    private byte[] getFrameHeader(JpegSegmentData segments) {
+        for (JpegSegmentType type : JPEG_SEGMENTS) {
+            if (type != JpegSegmentType.APP1 && segments.containsSegment(type)) {
+                return segments.getSegment(type);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return value of a SHORT or LONG tag stored inline in the IFD entry, 0 if the IFD has no such tag
+     */
+    private long readTag(ByteBuffer tiff, int ifd, int tag) {
+        int entry = findEntry(tiff, ifd, tag);
+        if (entry < 0) {
+            return 0;
+        }
+        return tiff.getShort(entry + 2) == 3 ? tiff.getShort(entry + 8) & 0xFFFF : tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+    }
+
+    private long readDateTime(ByteBuffer tiff, int ifd, int tag) {
+        int entry = findEntry(tiff, ifd, tag);
+        if (entry < 0 || tiff.getInt(entry + 4) < EXIF_DATE_TIME_LENGTH) {
+            return 0;
+        }
+        byte[] value = new byte[EXIF_DATE_TIME_LENGTH];
+        int offset = tiff.getInt(entry + 8);
+        for (int i = 0; i < value.length; i++) {
+            value[i] = tiff.get(offset + i);
+        }
+        try {
+            return LocalDateTime.parse(new String(value, StandardCharsets.US_ASCII), EXIF_DATE_TIME)
+                    .toEpochSecond(ZoneOffset.UTC);
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    private int findEntry(ByteBuffer tiff, int ifd, int tag) {
+        int count = tiff.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * IFD_ENTRY_SIZE;
+            if ((tiff.getShort(entry) & 0xFFFF) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fallback for formats other than JPEG.
+     */
+    private PhotoMetadata readFully(File file, long lastModified, long length) {
+        int orientation = 0;
+        int width = 0;
+        int height = 0;
+        long captureTime = 0;
+        try {
+            Metadata metadata = ImageMetadataReader.readMetadata(file);
+            Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+            ExifSubIFDDirectory subDirectory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+            JpegDirectory jpegDirectory = metadata.getFirstDirectoryOfType(JpegDirectory.class);
+            if (directory != null && directory.containsTag(ExifIFD0Directory.TAG_ORIENTATION)) {
+                orientation = directory.getInt(ExifIFD0Directory.TAG_ORIENTATION);
+            }
+            if (jpegDirectory != null) {
+                width = jpegDirectory.getImageWidth();
+                height = jpegDirectory.getImageHeight();
+            }
+            Date dateTimeOriginal = subDirectory != null ? subDirectory.getDateOriginal() : null;
+            if (dateTimeOriginal != null) {
+                captureTime = dateTimeOriginal.getTime() / 1000;
+            }
+        } catch (MetadataException | IOException | ImageProcessingException e) {
+            //silently swallow
+        }
+        return new PhotoMetadata(lastModified, length, orientation, width, height, captureTime);
+    }
+}
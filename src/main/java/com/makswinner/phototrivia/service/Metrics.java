@@ -0,0 +1,175 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and timers cheap enough for hot paths (a {@link LongAdder} increment, a timer adds one
+ * <code>System.nanoTime()</code> pair), exported in the Prometheus text format. Timers keep power-of-two
+ * buckets from 1 microsecond to about 17 seconds.
+ */
+@Service
+public class Metrics {
+    private static final String CACHE_REQUESTS = "phototrivia_cache_requests_total";
+    private static final String CACHE_REQUESTS_HELP = "Cache lookups by cache and result";
+    private static final String TYPE_COUNTER = "counter";
+    private static final String TYPE_GAUGE = "gauge";
+    private static final String TYPE_HISTOGRAM = "histogram";
+    private static final int TIMER_BUCKETS = 25;
+    private static final double NANOS_IN_SECOND = 1e9;
+    private static final double MICROS_IN_SECOND = 1e6;
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[TIMER_BUCKETS];
+
+        private Timer() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param startNanos value of <code>System.nanoTime()</code> taken before the measured work
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            long micros = (nanos + 999) / 1000;//rounded up, so that a bucket holds nothing above its bound
+            int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            if (bucket < buckets.length) {
+                buckets[bucket].increment();
+            }
+        }
+    }
+
+    public static final class CacheCounters {
+        private final Counter hits;
+        private final Counter misses;
+
+        private CacheCounters(Counter hits, Counter misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public void hit() {
+            hits.increment();
+        }
+
+        public void miss() {
+            misses.increment();
+        }
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Object> metrics = new LinkedHashMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * @param labels Prometheus labels without braces, e.g. <code>cache="pages",result="hit"</code>, or ""
+     */
+    public Counter counter(String name, String help, String labels) {
+        return (Counter) register(name, help, TYPE_COUNTER, labels, new Counter());
+    }
+
+    public Timer timer(String name, String help, String labels) {
+        return (Timer) register(name, help, TYPE_HISTOGRAM, labels, new Timer());
+    }
+
+    public CacheCounters cacheCounters(String cache) {
+        return new CacheCounters(
+                counter(CACHE_REQUESTS, CACHE_REQUESTS_HELP, "cache=\"" + cache + "\",result=\"hit\""),
+                counter(CACHE_REQUESTS, CACHE_REQUESTS_HELP, "cache=\"" + cache + "\",result=\"miss\""));
+    }
+
+    public void gauge(String name, String help, String labels, LongSupplier value) {
+        register(name, help, TYPE_GAUGE, labels, value);
+    }
+
+    private synchronized Object register(String name, String help, String type, String labels, Object metric) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already a " + family.type);
+        }
+        return family.metrics.computeIfAbsent(labels, key -> metric);
+    }
+
+    public synchronized void write(Appendable out) throws IOException {
+        for (Map.Entry<String, Family> family : families.entrySet()) {
+            String name = family.getKey();
+            out.append("# HELP ").append(name).append(' ').append(family.getValue().help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.getValue().type).append('\n');
+            for (Map.Entry<String, Object> metric : family.getValue().metrics.entrySet()) {
+                String labels = metric.getKey();
+                Object value = metric.getValue();
+                if (value instanceof Counter) {
+                    writeSample(out, name, labels, ((Counter) value).get());
+                } else if (value instanceof LongSupplier) {
+                    writeSample(out, name, labels, ((LongSupplier) value).getAsLong());
+                } else {
+                    writeTimer(out, name, labels, (Timer) value);
+                }
+            }
+        }
+    }
+
+    private void writeTimer(Appendable out, String name, String labels, Timer timer) throws IOException {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < timer.buckets.length; i++) {
+            cumulative += timer.buckets[i].sum();
+            out.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"").append(String.valueOf((1L << i) / MICROS_IN_SECOND)).append("\"} ")
+                    .append(String.valueOf(cumulative)).append('\n');
+        }
+        long count = timer.count.sum();
+        out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"+Inf\"} ")
+                .append(String.valueOf(count)).append('\n');
+        out.append(name).append("_sum").append(labels.isEmpty() ? "" : "{" + labels + "}").append(' ')
+                .append(String.valueOf(timer.totalNanos.sum() / NANOS_IN_SECOND)).append('\n');
+        writeSample(out, name + "_count", labels, count);
+    }
+
+    private void writeSample(Appendable out, String name, String labels, long value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(String.valueOf(value)).append('\n');
+    }
+}
@@ -0,0 +1,178 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Rendered pages with their headers, bounded by their total size with least recently used eviction.
+ * Pages of an album are dropped when the album changes, album lists when the set of albums changes.
+ */
+@Service
+public class PageCache implements AlbumCatalog.Listener {
+    private static final int BYTES_IN_KB = 1024;
+    private static final int ENTRY_OVERHEAD = 128;
+
+    public enum Page {
+        ALBUMS,
+        ALBUM_PHOTOS,
+        PHOTO
+    }
+
+    public static final class Key {
+        private final Page page;
+        private final String album;
+        private final String variant;
+        private final boolean fullScreen;
+        private final SortOrder sortOrder;
+        private final int hashCode;
+
+        private Key(Page page, String album, String variant, boolean fullScreen, SortOrder sortOrder) {
+            this.page = page;
+            this.album = album;
+            this.variant = variant;
+            this.fullScreen = fullScreen;
+            this.sortOrder = sortOrder;
+            this.hashCode = Objects.hash(page, album, variant, fullScreen, sortOrder);
+        }
+
+        /**
+         * @param albumsAccess allowed albums the list is resolved for, see {@link AlbumAccess#getAuthority()}
+         */
+        public static Key albums(String albumsAccess) {
+            return new Key(Page.ALBUMS, null, albumsAccess, false, null);
+        }
+
+        /**
+         * @param start position of the first listed photo
+         */
+        public static Key albumPhotos(String album, SortOrder sortOrder, int start) {
+            return new Key(Page.ALBUM_PHOTOS, album, String.valueOf(start), false, sortOrder);
+        }
+
+        public static Key photo(String album, String photo, boolean fullScreen, SortOrder sortOrder) {
+            return new Key(Page.PHOTO, album, photo, fullScreen, sortOrder);
+        }
+
+        private int size() {
+            return ENTRY_OVERHEAD + 2 * ((album != null ? album.length() : 0) + (variant != null ? variant.length() : 0));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hashCode == key.hashCode && fullScreen == key.fullScreen && page == key.page
+                    && sortOrder == key.sortOrder && Objects.equals(album, key.album)
+                    && Objects.equals(variant, key.variant);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value(value = "${pages.cache.size.kb}")
+    private long cacheSizeKb;
+
+    private final LinkedHashMap<Key, RenderedPage> pages = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private long maxCachedBytes;
+    private long generation;
+    private Metrics.CacheCounters cacheCounters;
+
+    @PostConstruct
+    private void init() {
+        maxCachedBytes = cacheSizeKb * BYTES_IN_KB;
+        cacheCounters = metrics.cacheCounters("pages");
+        albumCatalog.addListener(this);
+    }
+
+    public RenderedPage get(Key key) {
+        RenderedPage page;
+        synchronized (pages) {
+            page = pages.get(key);
+        }
+        if (page != null) {
+            cacheCounters.hit();
+        } else {
+            cacheCounters.miss();
+        }
+        return page;
+    }
+
+    /**
+     * @return value to pass to {@link #put} for a page rendered after this call
+     */
+    public long getGeneration() {
+        synchronized (pages) {
+            return generation;
+        }
+    }
+
+    /**
+     * Skips pages rendered before the latest invalidation, so that a stale page is never cached.
+     */
+    public void put(Key key, RenderedPage page, long renderedGeneration) {
+        long size = key.size() + page.size();
+        if (size > maxCachedBytes) {
+            return;
+        }
+        synchronized (pages) {
+            if (renderedGeneration != generation) {
+                return;
+            }
+            RenderedPage previous = pages.put(key, page);
+            cachedBytes += size - (previous != null ? key.size() + previous.size() : 0);
+            Iterator<Map.Entry<Key, RenderedPage>> eldest = pages.entrySet().iterator();
+            while (cachedBytes > maxCachedBytes && eldest.hasNext()) {
+                Map.Entry<Key, RenderedPage> entry = eldest.next();
+                cachedBytes -= entry.getKey().size() + entry.getValue().size();
+                eldest.remove();
+            }
+        }
+    }
+
+    @Override
+    public void albumsChanged() {
+        remove(key -> key.page == Page.ALBUMS);
+    }
+
+    @Override
+    public void albumChanged(String album) {
+        remove(key -> album.equals(key.album));
+    }
+
+    private void remove(Predicate<Key> condition) {
+        synchronized (pages) {
+            generation++;
+            Iterator<Map.Entry<Key, RenderedPage>> entries = pages.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Key, RenderedPage> entry = entries.next();
+                if (condition.test(entry.getKey())) {
+                    cachedBytes -= entry.getKey().size() + entry.getValue().size();
+                    entries.remove();
+                }
+            }
+        }
+    }
+}
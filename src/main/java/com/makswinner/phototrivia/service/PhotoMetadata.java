@@ -0,0 +1,58 @@
+package com.makswinner.phototrivia.service;
+
+/**
+ * Metadata of a single photo needed for rendering, valid for the file modification time and size it was read at.
+ */
+public final class PhotoMetadata {
+    public static final PhotoMetadata UNKNOWN = new PhotoMetadata(0, 0, 0, 0, 0, 0);
+
+    private final long lastModified;
+    private final long length;
+    private final int orientation;
+    private final int width;
+    private final int height;
+    private final long captureTime;
+
+    PhotoMetadata(long lastModified, long length, int orientation, int width, int height, long captureTime) {
+        this.lastModified = lastModified;
+        this.length = length;
+        this.orientation = orientation;
+        this.width = width;
+        this.height = height;
+        this.captureTime = captureTime;
+    }
+
+    boolean isValidFor(long lastModified, long length) {
+        return this.lastModified == lastModified && this.length == length;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return EXIF orientation (1-8), 0 when unknown
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return EXIF original date/time as seconds since epoch of the camera's wall clock, 0 when unknown
+     */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+}
@@ -0,0 +1,148 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares the photos following the one being viewed on a single low-priority thread of its own, so that they are
+ * ready by the time the browser asks for them without taking media workers or disk time from interactive requests:
+ * creates the downscaled variants photo pages offer (see {@link VariantService}) in the format the client accepts,
+ * or reads the original into the operating system's page cache when pages show it instead. Its queue holds a few
+ * photos only; what does not fit is dropped, not queued. Videos are never prefetched.
+ */
+@Service
+public class PrefetchService {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RECENT_SIZE = 64;
+    private static final int QUEUE_SIZE = 4;
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private SortService sortService;
+
+    @Autowired
+    private MediaTypes mediaTypes;
+
+    @Autowired
+    private VariantService variantService;
+
+    @Value(value = "${albums.path}")
+    private String albumsPathRaw;
+
+    @Value(value = "${prefetch.depth}")
+    private int depth;
+
+    /**
+     * Used by the warmer thread only.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Set<Path> recent = Collections.newSetFromMap(new LinkedHashMap<Path, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+            return size() > RECENT_SIZE;
+        }
+    });
+    private Path albumsPath;
+    private ThreadPoolExecutor warmer;
+    private Metrics.Counter dropped;
+
+    @PostConstruct
+    private void init() {
+        albumsPath = Paths.get(albumsPathRaw);
+        dropped = metrics.counter("phototrivia_prefetch_dropped_total",
+                "Photos not prefetched because the prefetch queue was full", "");
+        warmer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "photo-prefetcher");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        warmer.shutdownNow();
+    }
+
+    /**
+     * @param photo URL-encoded name of the photo being viewed
+     * @param sortOrder order the album is navigated in
+     * @param accept <code>Accept</code> header of the page request, may be null
+     */
+    public void prefetchAfter(String album, String photo, SortOrder sortOrder, String accept) {
+        if (depth <= 0 || !albumCatalog.containsAlbum(album)) {
+            return;
+        }
+        AlbumOrder photos = sortService.getOrder(album, sortOrder);
+        int position = photos.indexOf(photo);
+        if (position == AlbumIndex.NOT_FOUND) {
+            return;
+        }
+        for (int i = 1; i <= depth && i < photos.size(); i++) {
+            String name = photos.getName((position + i) % photos.size());
+            if (mediaTypes.isVideo(name)) {
+                continue;
+            }
+            Path path = albumsPath.resolve(album).resolve(name);
+            synchronized (recent) {
+                if (!recent.add(path)) {
+                    continue;
+                }
+            }
+            try {
+                warmer.execute(() -> prefetch(album, name, path, accept));
+            } catch (RejectedExecutionException e) {
+                synchronized (recent) {
+                    recent.remove(path);
+                }
+                dropped.increment();
+                return;//the warmer is behind, the browser reads these itself
+            }
+        }
+    }
+
+    private void prefetch(String album, String name, Path path, String accept) {
+        try {
+            if (variantService.createVariants(album, name, accept)) {
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            return;//silently swallow, the browser request will report it
+        }
+        read(path);
+    }
+
+    private void read(Path path) {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            do {
+                buffer.clear();
+            } while (file.read(buffer) >= 0);
+        } catch (IOException e) {
+            //silently swallow, the browser request will report it
+        }
+    }
+}
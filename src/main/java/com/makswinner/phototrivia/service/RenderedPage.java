@@ -0,0 +1,35 @@
+package com.makswinner.phototrivia.service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A rendered page as UTF-8 bytes, with the <code>Link</code> header to send along, cached together in
+ * {@link PageCache} so that a cache hit neither renders nor looks anything up.
+ */
+public final class RenderedPage {
+    private final byte[] body;
+    private final String preloadLink;
+
+    /**
+     * @param preloadLink value of the <code>Link</code> header, null for none
+     */
+    RenderedPage(String html, String preloadLink) {
+        this.body = html.getBytes(StandardCharsets.UTF_8);
+        this.preloadLink = preloadLink;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return value of the <code>Link</code> header preloading the next photo, null if there is none
+     */
+    public String getPreloadLink() {
+        return preloadLink;
+    }
+
+    int size() {
+        return body.length + (preloadLink != null ? 2 * preloadLink.length() : 0);
+    }
+}
@@ -1,21 +1,10 @@
 package com.makswinner.phototrivia.service;
 
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.Directory;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.MetadataException;
-import com.drew.metadata.exif.ExifIFD0Directory;
-import com.drew.metadata.jpeg.JpegDirectory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StreamUtils;
-import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
-import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.PostConstruct;
 import java.io.File;
@@ -23,25 +12,154 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
-
-import static com.makswinner.phototrivia.config.SecurityConfig.ROLE_ADMIN;
-import static com.makswinner.phototrivia.config.SecurityConfig.ROLE_GUEST;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 /**
  * @author Dr Maksym Chernolevskyi
  */
 @Service
-@Configuration
-public class RenderingService implements WebMvcConfigurer {
-    private static final String ROLE_PREFIX = "ROLE_";
+public class RenderingService {
     private static final int MEDIA_HEIGHT = 90;
     private static final int MEDIA_HEIGHT_FULLSCREEN = 100;
-    //private static final String STYLE_TRANSFORM_ROTATE_SCALE = "transform: rotate(%sdeg) scale(%s);";
+    private static final String STYLE_TRANSFORM_ROTATE_SCALE =
+            "image-orientation: none; transform: rotate(%sdeg) scale(%s);";
+    private static final String SIZES_HEIGHT_TIMES_ASPECT = "calc(%dvh * %.3f)";
+
+    private static final String RENDER_SECONDS = "phototrivia_render_seconds";
+    private static final String RENDER_SECONDS_HELP = "Rendering pages from templates";
+    private static final String NAVIGATION_SECONDS = "phototrivia_navigation_seconds";
+    private static final String NAVIGATION_SECONDS_HELP = "Finding the next or previous photo of an album";
+
+    private static final String MEDIA_HEIGHT_VALUE = String.valueOf(MEDIA_HEIGHT);
+    private static final String MEDIA_HEIGHT_FULLSCREEN_VALUE = String.valueOf(MEDIA_HEIGHT_FULLSCREEN);
+
+    private enum PhotoSlot implements Template.Slot {
+        MEDIA_REAL_URL("mediaRealUrl"),
+        MEDIA_STYLE("mediaStyle"),
+        MEDIA_SRCSET("mediaSrcset"),
+        MEDIA_SIZES("mediaSizes"),
+        MEDIA_HEIGHT("mediaHeight"),
+        PREVIOUS_MEDIA_URL("previousMediaUrl"),
+        MEDIA_URL_FULL_SCREEN("mediaUrlFullScreen"),
+        NEXT_MEDIA_URL("nextMediaUrl"),
+        MEDIA_URL_NO_FULL_SCREEN("mediaUrlNoFullScreen"),
+        ALBUM_PHOTOS_URL("albumPhotos"),
+        ALL_ALBUMS_URL("allAlbumsUrl"),
+        COMMENT_IF_NOT_FULL_SCREEN_JAVA_SCRIPT("commentIfNotFullScreenJavaScript"),
+        COMMENT_IF_FULL_SCREEN_HTML_START("commentIfFullScreenHtmlStart"),
+        COMMENT_IF_FULL_SCREEN_HTML_END("commentIfFullScreenHtmlEnd"),
+        COMMENT_IF_VIDEO_HTML_START("commentIfVideoHtmlStart"),
+        COMMENT_IF_VIDEO_HTML_END("commentIfVideoHtmlEnd"),
+        COMMENT_IF_PHOTO_HTML_START("commentIfPhotoHtmlStart"),
+        COMMENT_IF_PHOTO_HTML_END("commentIfPhotoHtmlEnd"),
+        PHOTO_POSITION("photoPosition"),
+        PHOTO_COUNT("photoCount");
+
+        private static final int COUNT = values().length;
+        private final String placeholder;
+
+        PhotoSlot(String placeholder) {
+            this.placeholder = placeholder;
+        }
+
+        @Override
+        public String placeholder() {
+            return placeholder;
+        }
+    }
+
+    private enum AlbumsSlot implements Template.Slot {
+        ALBUM("album");
+
+        private static final int COUNT = values().length;
+        private final String placeholder;
+
+        AlbumsSlot(String placeholder) {
+            this.placeholder = placeholder;
+        }
+
+        @Override
+        public String placeholder() {
+            return placeholder;
+        }
+    }
+
+    private enum AlbumPhotosSlot implements Template.Slot {
+        PHOTO("photo"),
+        PHOTO_URL("photoUrl"),
+        THUMBNAIL_URL("thumbnailUrl"),
+        PREVIOUS_PAGE_URL("previousPageUrl"),
+        NEXT_PAGE_URL("nextPageUrl"),
+        COMMENT_IF_FIRST_PAGE_HTML_START("commentIfFirstPageHtmlStart"),
+        COMMENT_IF_FIRST_PAGE_HTML_END("commentIfFirstPageHtmlEnd"),
+        COMMENT_IF_LAST_PAGE_HTML_START("commentIfLastPageHtmlStart"),
+        COMMENT_IF_LAST_PAGE_HTML_END("commentIfLastPageHtmlEnd"),
+        SORT_BY_NAME_URL("sortByNameUrl"),
+        SORT_BY_MODIFIED_URL("sortByModifiedUrl"),
+        SORT_BY_CAPTURED_URL("sortByCapturedUrl"),
+        FIRST_POSITION("firstPosition"),
+        LAST_POSITION("lastPosition"),
+        PHOTO_COUNT("photoCount");
+
+        private static final int COUNT = values().length;
+        private final String placeholder;
+
+        AlbumPhotosSlot(String placeholder) {
+            this.placeholder = placeholder;
+        }
+
+        @Override
+        public String placeholder() {
+            return placeholder;
+        }
+    }
+
+    /**
+     * Metadata of the photos a page shows, remembering whether any of it could not be read right now.
+     */
+    private final class MetadataLookup {
+        private boolean complete = true;
+
+        /**
+         * @param photo raw (not encoded) photo name
+         * @return metadata of the photo, {@link PhotoMetadata#UNKNOWN} if it cannot be read right now
+         */
+        private PhotoMetadata find(String album, String photo) {
+            try {
+                return metadataService.getMetadata(album, photo);
+            } catch (IOException | RejectedExecutionException e) {
+                complete = false;
+                return PhotoMetadata.UNKNOWN;//render without rotation and variants
+            }
+        }
+    }
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private PageCache pageCache;
+
+    @Autowired
+    private Metrics metrics;
 
-    private static final Map<String, List<String>> ALBUM_PHOTOS = new ConcurrentHashMap<>();
+    @Autowired
+    private VariantService variantService;
+
+    @Autowired
+    private SortService sortService;
+
+    @Autowired
+    private AssetService assetService;
+
+    @Autowired
+    private MediaTypes mediaTypes;
 
     @Value(value = "${rendering.title}")
     private String renderingTitle;
@@ -55,47 +173,54 @@ public class RenderingService implements WebMvcConfigurer {
     @Value(value = "${rendering.vlinkcolor}")
     private String renderingVLinkcolor;
 
-    @Value(value = "${extensions.ignore}")
-    private String ignoreExtensionsRaw;
-
-    //TODO @Value("#{'${extensions.video}'.split(',')}")
-    @Value(value = "${extensions.video}")
-    private String videoExtensionsRaw;
-
     @Value(value = "${albums.path}")
     private String albumsPathRaw;
 
-    private String albumsPath;
+    @Value(value = "${prefetch.hints}")
+    private boolean prefetchHints;
+
+    @Value(value = "${albums.page.size}")
+    private int albumPageSize;
+
     private String baseGalleryDir;
-    private String photoTemplateWithHeader;
-    private String albumsTemplateWithHeader;
-    private String albumPhotosTemplateWithHeader;
-    private final List<String> ignoreExtensions = new LinkedList<>();
-    private final List<String> videoExtensions = new LinkedList<>();
+    private Template photoTemplate;
+    private Template albumsTemplate;
+    private Template albumPhotosTemplate;
+    private int[] variantWidths;
+    private Metrics.Timer renderAlbumsTimer;
+    private Metrics.Timer renderAlbumPhotosTimer;
+    private Metrics.Timer renderPhotoTimer;
+    private Metrics.Timer nextPhotoTimer;
+    private Metrics.Timer previousPhotoTimer;
 
     @PostConstruct
     private void init() {
-        albumsPath = albumsPathRaw + File.separator;
+        renderAlbumsTimer = metrics.timer(RENDER_SECONDS, RENDER_SECONDS_HELP, "page=\"albums\"");
+        renderAlbumPhotosTimer = metrics.timer(RENDER_SECONDS, RENDER_SECONDS_HELP, "page=\"albumPhotos\"");
+        renderPhotoTimer = metrics.timer(RENDER_SECONDS, RENDER_SECONDS_HELP, "page=\"photo\"");
+        nextPhotoTimer = metrics.timer(NAVIGATION_SECONDS, NAVIGATION_SECONDS_HELP, "direction=\"next\"");
+        previousPhotoTimer = metrics.timer(NAVIGATION_SECONDS, NAVIGATION_SECONDS_HELP, "direction=\"previous\"");
         baseGalleryDir = getBaseGalleryDir(albumsPathRaw);
-        ignoreExtensions.addAll(Arrays.asList(ignoreExtensionsRaw.split(",")));
-        videoExtensions.addAll(Arrays.asList(videoExtensionsRaw.split(",")));
-        photoTemplateWithHeader = getTemplateWithHeader("template/photo.html");
-        albumsTemplateWithHeader = getTemplateWithHeader("template/albums.html");
-        albumPhotosTemplateWithHeader = getTemplateWithHeader("template/albumPhotos.html");
+        variantWidths = variantService.getWidths();
+        photoTemplate = Template.compile(getTemplateWithHeader("template/photo.html"), PhotoSlot.values());
+        albumsTemplate = Template.compile(getTemplateWithHeader("template/albums.html"), AlbumsSlot.values());
+        albumPhotosTemplate = Template.compile(
+                getTemplateWithHeader("template/albumPhotos.html"), AlbumPhotosSlot.values());
     }
 
     private String getBaseGalleryDir(String albumsPath) {
         return albumsPath.substring(albumsPath.lastIndexOf(File.separator) + 1);
     }
 
-    @Override
-    public void addResourceHandlers(ResourceHandlerRegistry registry) {
-        registry.addResourceHandler("/" + baseGalleryDir + "/**")
-                .addResourceLocations("file:///" + albumsPath);
+    /**
+     * @return first path segment of media URLs, the last segment of <code>albums.path</code>
+     */
+    public String getBaseGalleryDir() {
+        return baseGalleryDir;
     }
 
     private String getTemplateWithHeader(String templatePath) {
-        return getTemplate(templatePath)
+        return assetService.rewrite(getTemplate(templatePath))
                 .replace("%(title)", renderingTitle)
                 .replace("%(bgcolor)", renderingBgcolor)
                 .replace("%(linkcolor)", renderingLinkcolor)
@@ -111,115 +236,248 @@ public class RenderingService implements WebMvcConfigurer {
         }
     }
 
-    private String getTemplateLine(String data, String cycleVariable) {
-        String[] splitData = data.split(System.getProperty("line.separator"));
-        for (String eachSplit : splitData) {
-            if (eachSplit.contains(cycleVariable)) {
-                return eachSplit;
-            }
+    public byte[] getAlbumsPage() {
+        AlbumAccess albumAccess = AlbumAccess.current();
+        return getPage(PageCache.Key.albums(albumAccess.getAuthority()), () -> renderAlbums(albumAccess));
+    }
+
+    /**
+     * Pages of albums that are still being sorted in the requested order are listed by name and not cached.
+     *
+     * @param page 1-based page number, used when <code>after</code> is null
+     * @param after raw name of the last photo the client has already seen, the page starts with the next one
+     */
+    public byte[] getAlbumPhotosPage(String album, int page, String after, SortOrder sortOrder) {
+        AlbumOrder photos = findAlbumPhotos(album, sortOrder);
+        int first = after != null ? photos.positionAfter(after) : photos.pageStart(page, albumPageSize);
+        int limit = albumPageSize > 0 ? albumPageSize : Integer.MAX_VALUE;
+        if (photos.getSortOrder() != sortOrder) {
+            return renderAlbumPhotos(album, photos, sortOrder, first, limit).getBytes(StandardCharsets.UTF_8);
         }
-        return "";
+        return getPage(PageCache.Key.albumPhotos(album, sortOrder, first),
+                () -> renderAlbumPhotos(album, photos, sortOrder, first, limit));
     }
 
-    public String renderAlbums() {
-        String templateLine = getTemplateLine(albumsTemplateWithHeader, "%(cycle:albums)");
-        String templateRow = templateLine.replace("%(cycle:albums)", "");
-        return albumsTemplateWithHeader.replace(templateLine, getAlbumsDescription(templateRow));
-    }
-
-    private String getAlbumsDescription(String templateRow) {
-        List<String> albums = getAlbums();
-        StringBuilder description = new StringBuilder();
-        albums.forEach(album -> description.append(getAlbumRow(templateRow, album)));
-        return description.toString();
-    }
-
-    private String getAlbumRow(String templateRow, String album) {
-        return templateRow.replace("%(album)", album) + "\n";
-    }
-
-    private List<String> getAlbums() {
-        UserDetails userDetails =
-                (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
-        String userRole = userDetails.getAuthorities().stream()
-                .filter(authority -> authority.getAuthority().startsWith(ROLE_PREFIX))
-                .map(authority -> authority.getAuthority())
-                .findFirst()
-                .orElse(ROLE_GUEST);
-        String albumsRaw = userDetails.getAuthorities().stream()
-                .filter(authority -> !authority.getAuthority().startsWith(ROLE_PREFIX))
-                .map(authority -> authority.getAuthority())
-                .findFirst()
-                .orElse("");
-        List<String> allowedAlbums = Arrays.stream(albumsRaw.split(",")).collect(Collectors.toList());
-        List<String> albums;
-        if ((ROLE_ADMIN).equals(userRole)) {
-            albums = findAllAlbums();
-        } else if ((ROLE_GUEST).equals(userRole)) {
-            albums = findAlbumsForUser(allowedAlbums);
-        } else {
-            albums = new ArrayList<>();
+    /**
+     * Writes the listing of the whole album row by row, so memory use does not depend on the album size.
+     */
+    public void writeAlbumPhotos(String album, SortOrder sortOrder, Appendable out) throws IOException {
+        long start = System.nanoTime();
+        AlbumOrder photos = findAlbumPhotos(album, sortOrder);
+        albumPhotosTemplate.render(getAlbumPhotosValues(album, photos, sortOrder, 0, photos.size()),
+                getAlbumPhotosRows(album, photos, sortOrder, 0, photos.size()), out);
+        renderAlbumPhotosTimer.recordSince(start);
+    }
+
+    /**
+     * Photo pages come with the <code>Link</code> header preloading the next photo and are cached with it, so
+     * a cached page is returned without reading metadata. Pages of photos that are not in the album, or whose
+     * metadata or that of the next photo cannot be read right now, or of albums that are still being sorted in
+     * the requested order are not cached.
+     *
+     * @param photo URL-encoded photo name
+     */
+    public RenderedPage getPhotoPage(String album, String photo, boolean fullScreen, String urlAllAlbums,
+                                     SortOrder sortOrder) {
+        AlbumOrder photos = findAlbumPhotos(album, sortOrder);
+        boolean cacheable = photos.indexOf(photo) != AlbumIndex.NOT_FOUND && photos.getSortOrder() == sortOrder;
+        PageCache.Key key = PageCache.Key.photo(album, photo, fullScreen, sortOrder);
+        RenderedPage page = cacheable ? pageCache.get(key) : null;
+        if (page != null) {
+            return page;
+        }
+        long generation = pageCache.getGeneration();
+        MetadataLookup lookup = new MetadataLookup();
+        page = new RenderedPage(renderPhoto(album, photos, sortOrder, photo, fullScreen, urlAllAlbums, lookup),
+                getNextMediaPreloadLink(album, photos, photo, fullScreen, lookup));
+        if (cacheable && lookup.complete) {
+            pageCache.put(key, page, generation);
+        }
+        return page;
+    }
+
+    private byte[] getPage(PageCache.Key key, Supplier<String> renderer) {
+        RenderedPage page = pageCache.get(key);
+        if (page == null) {
+            long generation = pageCache.getGeneration();
+            page = new RenderedPage(renderer.get(), null);
+            pageCache.put(key, page, generation);
         }
-        return albums;
+        return page.getBody();
+    }
+
+    public String renderAlbums() {
+        return renderAlbums(AlbumAccess.current());
+    }
+
+    private String renderAlbums(AlbumAccess albumAccess) {
+        long start = System.nanoTime();
+        List<String> albums = albumAccess.filter(findAllAlbums());
+        String page = albumsTemplate.render(new String[AlbumsSlot.COUNT], new Template.Rows() {
+            @Override
+            public int count() {
+                return albums.size();
+            }
+
+            @Override
+            public void fill(int row, String[] values) {
+                values[AlbumsSlot.ALBUM.ordinal()] = albums.get(row);
+            }
+        });
+        renderAlbumsTimer.recordSince(start);
+        return page;
     }
 
     public String renderAlbumPhotos(String album) {
-        String templateLine = getTemplateLine(albumPhotosTemplateWithHeader, "%(cycle:photos)");
-        String templateRow = templateLine.replace("%(cycle:photos)", "");
-        return albumPhotosTemplateWithHeader.replace(templateLine, getAlbumPhotosDescription(templateRow, album));
+        SortOrder sortOrder = sortService.getDefaultOrder();
+        return renderAlbumPhotos(album, findAlbumPhotos(album, sortOrder), sortOrder, 0, Integer.MAX_VALUE);
     }
 
-    private String getAlbumPhotosDescription(String templateRow, String album) {
-        StringBuilder description = new StringBuilder();
-        findAlbumPhotos(album).forEach(photo -> description.append(getPhotoLinkRow(templateRow, album, photo)));
-        return description.toString();
+    /**
+     * @param sortOrder requested order, <code>photos</code> are listed by name while they are being sorted
+     */
+    private String renderAlbumPhotos(String album, AlbumOrder photos, SortOrder sortOrder, int first, int limit) {
+        long start = System.nanoTime();
+        int from = Math.min(first, photos.size());
+        int to = (int) Math.min((long) from + limit, photos.size());
+        String page = albumPhotosTemplate.render(getAlbumPhotosValues(album, photos, sortOrder, from, to),
+                getAlbumPhotosRows(album, photos, sortOrder, from, to));
+        renderAlbumPhotosTimer.recordSince(start);
+        return page;
     }
 
-    private String getPhotoLinkRow(String templateRow, String album, String photo) {
-        return templateRow
-                .replace("%(photo)", photo)
-                .replace("%(photoUrl)", getPhotoUrl(album, photo, false))
-                + "\n";
+    /**
+     * @param from position of the first listed photo
+     * @param to position after the last listed photo
+     */
+    private String[] getAlbumPhotosValues(String album, AlbumOrder photos, SortOrder sortOrder, int from, int to) {
+        boolean firstPage = from == 0;
+        boolean lastPage = to >= photos.size();
+        String[] values = new String[AlbumPhotosSlot.COUNT];
+        values[AlbumPhotosSlot.PREVIOUS_PAGE_URL.ordinal()] = firstPage || albumPageSize <= 0 ? ""
+                : getAlbumPhotosUrl(album, sortOrder) + "&page=" + ((from - 1) / albumPageSize + 1);
+        values[AlbumPhotosSlot.NEXT_PAGE_URL.ordinal()] = lastPage ? ""
+                : getAlbumPhotosUrl(album, sortOrder) + "&after=" + photos.get(to - 1);
+        values[AlbumPhotosSlot.COMMENT_IF_FIRST_PAGE_HTML_START.ordinal()] = firstPage ? "<!--" : "";
+        values[AlbumPhotosSlot.COMMENT_IF_FIRST_PAGE_HTML_END.ordinal()] = firstPage ? "-->" : "";
+        values[AlbumPhotosSlot.COMMENT_IF_LAST_PAGE_HTML_START.ordinal()] = lastPage ? "<!--" : "";
+        values[AlbumPhotosSlot.COMMENT_IF_LAST_PAGE_HTML_END.ordinal()] = lastPage ? "-->" : "";
+        values[AlbumPhotosSlot.SORT_BY_NAME_URL.ordinal()] = getAlbumPhotosUrl(album, SortOrder.NAME);
+        values[AlbumPhotosSlot.SORT_BY_MODIFIED_URL.ordinal()] = getAlbumPhotosUrl(album, SortOrder.MODIFIED);
+        values[AlbumPhotosSlot.SORT_BY_CAPTURED_URL.ordinal()] = getAlbumPhotosUrl(album, SortOrder.CAPTURED);
+        values[AlbumPhotosSlot.FIRST_POSITION.ordinal()] = String.valueOf(Math.min(from + 1, to));
+        values[AlbumPhotosSlot.LAST_POSITION.ordinal()] = String.valueOf(to);
+        values[AlbumPhotosSlot.PHOTO_COUNT.ordinal()] = String.valueOf(photos.size());
+        return values;
+    }
+
+    private Template.Rows getAlbumPhotosRows(String album, AlbumOrder photos, SortOrder sortOrder, int from, int to) {
+        return new Template.Rows() {
+            @Override
+            public int count() {
+                return to - from;
+            }
+
+            @Override
+            public void fill(int row, String[] values) {
+                String photo = photos.get(from + row);
+                values[AlbumPhotosSlot.PHOTO.ordinal()] = photo;
+                values[AlbumPhotosSlot.PHOTO_URL.ordinal()] = getPhotoUrl(album, photo, false, sortOrder);
+                values[AlbumPhotosSlot.THUMBNAIL_URL.ordinal()] = getThumbnailUrl(album, photo);
+            }
+        };
     }
 
     public String renderPhoto(String album, String photo, boolean fullScreen, String urlAllAlbums) {
-        int mediaHeight = fullScreen ? MEDIA_HEIGHT_FULLSCREEN : MEDIA_HEIGHT;
-        boolean video = videoExtensions.contains(getFilenameExtensionLowerCase(photo));
-        return photoTemplateWithHeader
-                .replace("%(mediaRealUrl)", getMediaRealUrl(album, photo))
-                .replace("%(mediaStyle)", "")//getMediaStyle(album, photo))
-                .replace("%(mediaHeight)", "" + mediaHeight)
-                .replace("%(previousMediaUrl)", getPhotoUrl(album, findPreviousPhoto(album, photo), fullScreen))
-                .replace("%(mediaUrlFullScreen)", getPhotoUrl(album, photo, true))
-                .replace("%(nextMediaUrl)", getPhotoUrl(album, findNextPhoto(album, photo), fullScreen))
-                .replace("%(mediaUrlNoFullScreen)", getPhotoUrl(album, photo, false))
-                .replace("%(albumPhotos)", getAlbumPhotosUrl(album))
-                .replace("%(allAlbumsUrl)", urlAllAlbums)
-                .replace("%(commentIfNotFullScreenJavaScript)", fullScreen ? "" : "//")
-                .replace("%(commentIfFullScreenHtmlStart)", fullScreen ? "<!--" : "")
-                .replace("%(commentIfFullScreenHtmlEnd)", fullScreen ? "-->" : "")
-                .replace("%(commentIfVideoHtmlStart)", video ? "<!--" : "")
-                .replace("%(commentIfVideoHtmlEnd)", video ? "-->" : "")
-                .replace("%(commentIfPhotoHtmlStart)", !video ? "<!--" : "")
-                .replace("%(commentIfPhotoHtmlEnd)", !video ? "-->" : "");
-    }
-
-    private String getAlbumPhotosUrl(String album) {
-        return "/album/" + album + "?list=true";
-    }
-
-    //private String getMediaStyle(String album, String photo) {
-//        int [] exifInfo = getExifInfo(album, photo);
-//        int orientation = exifInfo[0];
-//        float scale = getScale(orientation, exifInfo[1], exifInfo[2]);
-//        if (orientation == 6)
-//            return String.format(STYLE_TRANSFORM_ROTATE_SCALE, "90", "" + scale);
-//        if (orientation == 8)
-//            return String.format(STYLE_TRANSFORM_ROTATE_SCALE, "-90", "" + scale);
-//        if (orientation == 3)
-//            return String.format(STYLE_TRANSFORM_ROTATE_SCALE, "180", "1.0");
-//        return "";
-//    }
+        SortOrder sortOrder = sortService.getDefaultOrder();
+        return renderPhoto(album, findAlbumPhotos(album, sortOrder), sortOrder, photo, fullScreen, urlAllAlbums,
+                new MetadataLookup());
+    }
+
+    /**
+     * @param sortOrder requested order, <code>photos</code> are navigated by name while they are being sorted
+     */
+    private String renderPhoto(String album, AlbumOrder photos, SortOrder sortOrder, String photo,
+                               boolean fullScreen, String urlAllAlbums, MetadataLookup lookup) {
+        long start = System.nanoTime();
+        boolean video = mediaTypes.isVideo(photo);
+        int position = photos.indexOf(photo);
+        PhotoMetadata metadata = video || position == AlbumIndex.NOT_FOUND
+                ? PhotoMetadata.UNKNOWN : lookup.find(album, photos.getName(position));
+        String srcset = getSrcset(album, photo, metadata);
+        String[] values = new String[PhotoSlot.COUNT];
+        values[PhotoSlot.MEDIA_REAL_URL.ordinal()] = getMediaRealUrl(album, photo);
+        values[PhotoSlot.MEDIA_STYLE.ordinal()] = getMediaStyle(metadata);
+        values[PhotoSlot.MEDIA_SRCSET.ordinal()] = srcset;
+        values[PhotoSlot.MEDIA_SIZES.ordinal()] = srcset.isEmpty() ? "" : getSizes(metadata, fullScreen);
+        values[PhotoSlot.MEDIA_HEIGHT.ordinal()] = fullScreen ? MEDIA_HEIGHT_FULLSCREEN_VALUE : MEDIA_HEIGHT_VALUE;
+        values[PhotoSlot.PREVIOUS_MEDIA_URL.ordinal()] =
+                getPhotoUrl(album, photos.previous(photo), fullScreen, sortOrder);
+        values[PhotoSlot.MEDIA_URL_FULL_SCREEN.ordinal()] = getPhotoUrl(album, photo, true, sortOrder);
+        values[PhotoSlot.NEXT_MEDIA_URL.ordinal()] = getPhotoUrl(album, photos.next(photo), fullScreen, sortOrder);
+        values[PhotoSlot.MEDIA_URL_NO_FULL_SCREEN.ordinal()] = getPhotoUrl(album, photo, false, sortOrder);
+        values[PhotoSlot.ALBUM_PHOTOS_URL.ordinal()] = getAlbumPhotosUrl(album, sortOrder);
+        values[PhotoSlot.ALL_ALBUMS_URL.ordinal()] = urlAllAlbums;
+        values[PhotoSlot.COMMENT_IF_NOT_FULL_SCREEN_JAVA_SCRIPT.ordinal()] = fullScreen ? "" : "//";
+        values[PhotoSlot.COMMENT_IF_FULL_SCREEN_HTML_START.ordinal()] = fullScreen ? "<!--" : "";
+        values[PhotoSlot.COMMENT_IF_FULL_SCREEN_HTML_END.ordinal()] = fullScreen ? "-->" : "";
+        values[PhotoSlot.COMMENT_IF_VIDEO_HTML_START.ordinal()] = video ? "<!--" : "";
+        values[PhotoSlot.COMMENT_IF_VIDEO_HTML_END.ordinal()] = video ? "-->" : "";
+        values[PhotoSlot.COMMENT_IF_PHOTO_HTML_START.ordinal()] = !video ? "<!--" : "";
+        values[PhotoSlot.COMMENT_IF_PHOTO_HTML_END.ordinal()] = !video ? "-->" : "";
+        values[PhotoSlot.PHOTO_POSITION.ordinal()] =
+                position != AlbumIndex.NOT_FOUND ? String.valueOf(position + 1) : "-";
+        values[PhotoSlot.PHOTO_COUNT.ordinal()] = String.valueOf(photos.size());
+        String page = photoTemplate.render(values);
+        renderPhotoTimer.recordSince(start);
+        return page;
+    }
+
+    /**
+     * @param photo URL-encoded photo name
+     * @return value of a <code>Link</code> header preloading the next photo, with the variants of the photo page
+     * so that the browser preloads the one it is going to show, null if there is nothing to preload
+     */
+    private String getNextMediaPreloadLink(String album, AlbumOrder photos, String photo, boolean fullScreen,
+                                           MetadataLookup lookup) {
+        if (!prefetchHints) {
+            return null;
+        }
+        int position = photos.indexOf(photo);
+        if (position == AlbumIndex.NOT_FOUND) {
+            return null;
+        }
+        int nextPosition = (position + 1) % photos.size();
+        String next = photos.get(nextPosition);
+        if (nextPosition == position || mediaTypes.isVideo(next)) {
+            return null;
+        }
+        String link = "<" + getMediaRealUrl(album, next) + ">; rel=preload; as=image";
+        if (variantWidths.length == 0) {
+            return link;
+        }
+        PhotoMetadata metadata = lookup.find(album, photos.getName(nextPosition));
+        String srcset = getSrcset(album, next, metadata);
+        return srcset.isEmpty() ? link
+                : link + "; imagesrcset=\"" + srcset + "\"; imagesizes=\"" + getSizes(metadata, fullScreen) + "\"";
+    }
+
+    private String getAlbumPhotosUrl(String album, SortOrder sortOrder) {
+        return "/album/" + album + "?list=true" + (sortOrder != sortService.getDefaultOrder()
+                ? "&sort=" + sortOrder.getParameter() : "");
+    }
+
+    private String getMediaStyle(PhotoMetadata metadata) {
+        int orientation = metadata.getOrientation();
+        float scale = getScale(orientation, metadata.getWidth(), metadata.getHeight());
+        if (orientation == 6)
+            return String.format(STYLE_TRANSFORM_ROTATE_SCALE, "90", "" + scale);
+        if (orientation == 8)
+            return String.format(STYLE_TRANSFORM_ROTATE_SCALE, "-90", "" + scale);
+        if (orientation == 3)
+            return String.format(STYLE_TRANSFORM_ROTATE_SCALE, "180", "1.0");
+        return "";
+    }
 
     private float getScale(int orientation, int width, int height) {
         float scale = 0.66f;
@@ -233,12 +491,56 @@ public class RenderingService implements WebMvcConfigurer {
         return scale;
     }
 
+    /**
+     * @param photo URL-encoded photo name
+     * @return variants narrower than the original followed by the original, empty if there are no such variants
+     * or the photo size is unknown
+     */
+    private String getSrcset(String album, String photo, PhotoMetadata metadata) {
+        int width = metadata.getWidth();
+        StringBuilder srcset = new StringBuilder();
+        for (int variantWidth : variantWidths) {
+            if (variantWidth < width) {
+                srcset.append(getVariantUrl(album, photo, variantWidth)).append(' ').append(variantWidth).append("w, ");
+            }
+        }
+        if (srcset.length() == 0 || metadata.getHeight() <= 0) {
+            return "";
+        }
+        return srcset.append(getMediaRealUrl(album, photo)).append(' ').append(width).append('w').toString();
+    }
+
+    /**
+     * Photos are laid out by height, so their width is the media height times the aspect ratio of the pixels,
+     * which rotated photos keep as they are rotated with CSS.
+     */
+    private String getSizes(PhotoMetadata metadata, boolean fullScreen) {
+        int height = fullScreen ? MEDIA_HEIGHT_FULLSCREEN : MEDIA_HEIGHT;
+        return String.format(Locale.ROOT, SIZES_HEIGHT_TIMES_ASPECT, height,
+                (double) metadata.getWidth() / metadata.getHeight());
+    }
+
     private String getMediaRealUrl(String album, String photo) {
         return "/" + baseGalleryDir + "/" + album + "/" + photo;
     }
 
-    private String getPhotoUrl(String album, String photo, boolean fullScreen) {
-        return "/photo/" + album + "/" + photo + (fullScreen ? "?fullScreen=true" : "");
+    private String getVariantUrl(String album, String photo, int width) {
+        return "/variant/" + width + "/" + album + "/" + photo;
+    }
+
+    private String getThumbnailUrl(String album, String photo) {
+        return "/thumb/" + album + "/" + photo;
+    }
+
+    /**
+     * @param photo URL-encoded photo name
+     */
+    public String getPhotoUrl(String album, String photo, boolean fullScreen, SortOrder sortOrder) {
+        String url = "/photo/" + album + "/" + photo + (fullScreen ? "?fullScreen=true" : "");
+        if (sortOrder == sortService.getDefaultOrder()) {
+            return url;
+        }
+        return url + (fullScreen ? "&" : "?") + "sort=" + sortOrder.getParameter();
     }
 
     public static String encode(String url) {
@@ -250,100 +552,40 @@ public class RenderingService implements WebMvcConfigurer {
     }
 
     private List<String> findAllAlbums() {
-        String[] directories = new File(albumsPath).list(
-                (current, name) -> new File(current, name).isDirectory());
-        return directories != null && directories.length > 0 ?
-                Arrays.asList(directories).stream().sorted(Comparator.reverseOrder()).collect(Collectors.toList())
-                : new LinkedList<>();
+        return albumCatalog.getAlbums();
     }
 
-    private List<String> findAlbumsForUser(List<String> allowedAlbums) {
-        List<String> allAlbums = findAllAlbums();
-        return allAlbums.stream()
-                .filter(album -> matches(album, allowedAlbums))
-                .sorted(Comparator.reverseOrder())
-                .collect(Collectors.toList());
+    private AlbumOrder findAlbumPhotos(String album, SortOrder sortOrder) {
+        return sortService.getOrder(album, sortOrder);
     }
 
-    private boolean matches(String album, List<String> allowedAlbums) {
-        for (String allowedAlbum : allowedAlbums) {
-            if ("*".equals(allowedAlbum) || album.equalsIgnoreCase(allowedAlbum)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private List<String> findAlbumPhotos(String album) {
-        List<String> photos = ALBUM_PHOTOS.get(album);
-        if (photos == null) {
-            File dir = new File(albumsPath + album);
-            String[] files = dir.list((current, name) -> {
-                File imageFile = new File(current, name);
-                return imageFile.isFile()
-                        && !ignoreExtensions.contains(getFilenameExtensionLowerCase(name));
-            });
-            photos = Arrays.asList(files).stream().sorted().map(RenderingService::encode).collect(Collectors.toList());
-            ALBUM_PHOTOS.put(album, photos);
-        }
-        return photos;
+    public String findNextPhoto(String album, String current) {
+        return findNextPhoto(album, current, sortService.getDefaultOrder());
     }
 
-    public String findNextPhoto(String album, String current) {
-        List<String> photos = findAlbumPhotos(album);
-        if (current != null) {
-            Iterator<String> iterator = photos.iterator();
-            for (; iterator.hasNext(); ) {
-                String file = iterator.next();
-                if (file.equals(current) && iterator.hasNext())
-                    return iterator.next();
-            }
-        }
-        return photos.get(0);
-    }
-
-    private String findPreviousPhoto(String album, String current) {
-        List<String> photos = findAlbumPhotos(album);
-        if (current != null) {
-            Iterator<String> iterator = photos.iterator();
-            String previous = photos.size() > 1 ? photos.get(photos.size() - 1) : photos.get(0);
-            for (; iterator.hasNext(); ) {
-                String file = iterator.next();
-                if (file.equals(current))
-                    return previous;
-                previous = file;
-            }
-        }
-        return photos.get(0);
+    public String findNextPhoto(String album, String current, SortOrder sortOrder) {
+        long start = System.nanoTime();
+        String next = findAlbumPhotos(album, sortOrder).next(current);
+        nextPhotoTimer.recordSince(start);
+        return next;
     }
 
-    private String getFilenameExtensionLowerCase(String name) {
-        return name.substring(name.lastIndexOf(".") + 1).toLowerCase();
+    public String findPreviousPhoto(String album, String current) {
+        return findPreviousPhoto(album, current, sortService.getDefaultOrder());
     }
 
-    private int [] getExifInfo(String album, String photo) {
-        File imageFile = new File(albumsPath + album + File.separator + photo);
-        int orientation = 0;
-        int width = 0;
-        int height = 0;
-        try {
-            Metadata metadata = ImageMetadataReader.readMetadata(imageFile);
-            Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
-            JpegDirectory jpegDirectory = metadata.getFirstDirectoryOfType(JpegDirectory.class);
-            if (directory != null) {
-                orientation = directory.getInt(ExifIFD0Directory.TAG_ORIENTATION);
-            }
-            if (jpegDirectory != null) {
-                width = jpegDirectory.getImageWidth();
-                height = jpegDirectory.getImageHeight();
-            }
-        } catch (MetadataException | IOException | ImageProcessingException e) {
-            //silently swallow
-        }
-        return new int [] { orientation, width, height };
+    public String findPreviousPhoto(String album, String current, SortOrder sortOrder) {
+        long start = System.nanoTime();
+        String previous = findAlbumPhotos(album, sortOrder).previous(current);
+        previousPhotoTimer.recordSince(start);
+        return previous;
+    }
+
+    public static String getFilenameExtensionLowerCase(String name) {
+        return name.substring(name.lastIndexOf(".") + 1).toLowerCase();
     }
 
     public void reset() {
-        ALBUM_PHOTOS.clear();
+        albumCatalog.reset();
     }
 }
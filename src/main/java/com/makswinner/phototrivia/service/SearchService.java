@@ -0,0 +1,415 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Search over photo names of all albums, by prefix or substring and case-insensitive for ASCII letters, and by date.
+ * Albums are indexed in the background into a {@link TrigramFilter} of their current {@link AlbumIndex} once the
+ * catalog has loaded them, on their first visit or by the startup indexer (<code>albums.index</code>), and again
+ * after each change of that album only. Albums not loaded in this run are indexed from the catalog snapshot of
+ * an earlier run: only their filter is kept, names are read from the snapshot when the filter may match, and an
+ * album whose directory changed since is skipped until it is loaded. Search itself never loads an album.
+ * A photo is dated by its capture time once its album has been sorted by date (see {@link SortService}), otherwise
+ * by the date its album name starts with, e.g. <code>2019</code>, <code>2019-07</code> or <code>20190714</code>.
+ * Albums not indexed yet, including those never loaded in any run, are not searched, results tell how many there are.
+ */
+@Service
+public class SearchService implements AlbumCatalog.Listener {
+    private static final Pattern ALBUM_DATE = Pattern.compile("^(\\d{4})(?:[-_.]?(\\d{2})(?:[-_.]?(\\d{2}))?)?(?!\\d)");
+    private static final Pattern QUERY_DATE = Pattern.compile("(\\d{4})(?:-(\\d{2})(?:-(\\d{2}))?)?");
+
+    /**
+     * A photo found by a search.
+     */
+    public static final class Hit {
+        private final String album;
+        private final String name;
+        private final String photo;
+        private final long captureTime;
+
+        private Hit(String album, String name, String photo, long captureTime) {
+            this.album = album;
+            this.name = name;
+            this.photo = photo;
+            this.captureTime = captureTime;
+        }
+
+        public String getAlbum() {
+            return album;
+        }
+
+        /**
+         * @return raw photo name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return URL-encoded photo name
+         */
+        public String getPhoto() {
+            return photo;
+        }
+
+        /**
+         * @return capture time in seconds, 0 when not known
+         */
+        public long getCaptureTime() {
+            return captureTime;
+        }
+    }
+
+    public static final class Results {
+        private final List<Hit> hits;
+        private final boolean truncated;
+        private final int pending;
+
+        private Results(List<Hit> hits, boolean truncated, int pending) {
+            this.hits = hits;
+            this.truncated = truncated;
+            this.pending = pending;
+        }
+
+        /**
+         * @return photos found, albums newest first and photos by name
+         */
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        /**
+         * @return whether there are more photos than <code>search.results</code>
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * @return allowed albums that were not searched, because they are not loaded or not indexed yet
+         */
+        public int getPending() {
+            return pending;
+        }
+    }
+
+    private static final class Indexed {
+        /**
+         * Null for albums indexed from the catalog snapshot, whose photos are read from it for every search.
+         */
+        private final AlbumIndex photos;
+        private final TrigramFilter filter;
+
+        /**
+         * Start and end (exclusive) in seconds of the date the album name starts with, null if it has none.
+         */
+        private final long[] period;
+        private final int size;
+
+        private Indexed(AlbumIndex photos, TrigramFilter filter, long[] period, int size) {
+            this.photos = photos;
+            this.filter = filter;
+            this.period = period;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Collects the positions of matching photos of a block, reading names without creating strings.
+     */
+    private static final class BlockMatcher implements AlbumIndex.NameVisitor {
+        private final byte[] text;
+        private final boolean prefix;
+        private final boolean dated;
+        private final long start;
+        private final long end;
+        private final int[] positions = new int[TrigramFilter.BLOCK_SIZE];
+        private int count;
+        private long[] captured;
+        private boolean albumInRange;
+
+        private BlockMatcher(byte[] text, boolean prefix, boolean dated, long start, long end) {
+            this.text = text;
+            this.prefix = prefix;
+            this.dated = dated;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean visit(int position, byte[] bytes, int offset, int length) {
+            if (contains(bytes, offset, length) && isInRange(position)) {
+                positions[count++] = position;
+            }
+            return true;
+        }
+
+        private boolean contains(byte[] bytes, int offset, int length) {
+            int last = prefix ? Math.min(0, length - text.length) : length - text.length;
+            for (int i = 0; i <= last; i++) {
+                int matched = 0;
+                while (matched < text.length
+                        && TrigramFilter.toLowerCase(bytes[offset + i + matched]) == text[matched]) {
+                    matched++;
+                }
+                if (matched == text.length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isInRange(int position) {
+            if (!dated) {
+                return true;
+            }
+            long captureTime = captured != null ? captured[position] : 0;
+            return captureTime != 0 ? captureTime >= start && captureTime < end : albumInRange;
+        }
+    }
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private SortService sortService;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value(value = "${search.index:true}")
+    private boolean enabled;
+
+    @Value(value = "${search.results:100}")
+    private int maxResults;
+
+    private final Map<String, Indexed> indexed = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private ExecutorService indexer;
+    private Metrics.Timer indexTimer;
+    private Metrics.Timer searchTimer;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        indexTimer = metrics.timer("phototrivia_search_index_seconds", "Indexing the photo names of an album", "");
+        searchTimer = metrics.timer("phototrivia_search_seconds", "Searching photos of all albums", "");
+        metrics.gauge("phototrivia_search_pending", "Albums waiting to be indexed for search", "", pending::size);
+        metrics.gauge("phototrivia_search_index_bytes", "Heap taken by the trigram filters of all albums", "",
+                () -> indexed.values().stream().mapToLong(album -> album.filter.getBytes()).sum());
+        indexer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "album-search-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        albumCatalog.addListener(this);
+        scheduleUnindexed();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (indexer != null) {
+            indexer.shutdownNow();
+        }
+    }
+
+    /**
+     * @return whether <code>search.index</code> is on, otherwise nothing is indexed and searches find nothing
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param text searched in photo names, null or empty to search by date only
+     * @param prefix whether names have to start with the text
+     * @param from first year, month or day as <code>yyyy</code>, <code>yyyy-MM</code> or <code>yyyy-MM-dd</code>,
+     * null for no lower bound
+     * @param to last year, month or day, null for no upper bound
+     * @throws IllegalArgumentException if there is neither text nor a date, or a date is malformed
+     */
+    public Results search(AlbumAccess albumAccess, String text, boolean prefix, String from, String to) {
+        byte[] folded = text != null ? text.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        for (int i = 0; i < folded.length; i++) {
+            folded[i] = TrigramFilter.toLowerCase(folded[i]);
+        }
+        boolean dated = from != null || to != null;
+        if (folded.length == 0 && !dated) {
+            throw new IllegalArgumentException("Nothing to search for");
+        }
+        long start = from != null ? parseQueryDate(from)[0] : Long.MIN_VALUE;
+        long end = to != null ? parseQueryDate(to)[1] : Long.MAX_VALUE;
+        long searchStart = System.nanoTime();
+        long[] mask = TrigramFilter.mask(folded, prefix);
+        BlockMatcher matcher = new BlockMatcher(folded, prefix, dated, start, end);
+        List<Hit> hits = new ArrayList<>();
+        int pendingAlbums = 0;
+        for (String album : albumAccess.filter(albumCatalog.getAlbums())) {
+            Indexed entry = indexed.get(album);
+            if (entry == null) {
+                pendingAlbums++;
+                continue;
+            }
+            AlbumIndex photos = entry.photos;
+            matcher.captured = dated && photos != null ? sortService.getCaptureTimes(album, photos) : null;
+            matcher.albumInRange = entry.period != null && entry.period[0] < end && entry.period[1] > start;
+            if (dated && matcher.captured == null && !matcher.albumInRange) {
+                continue;
+            }
+            for (int block = 0; block < entry.filter.blocks(); block++) {
+                if (!entry.filter.mayContain(block, mask)) {
+                    continue;
+                }
+                if (photos == null) {
+                    photos = albumCatalog.readStoredAlbum(album);
+                    if (photos == null || photos.size() != entry.size) {
+                        pendingAlbums++;//loaded or changed since it was indexed
+                        break;
+                    }
+                }
+                int first = block * TrigramFilter.BLOCK_SIZE;
+                matcher.count = 0;
+                photos.forEachName(first, Math.min(first + TrigramFilter.BLOCK_SIZE, photos.size()), matcher);
+                for (int i = 0; i < matcher.count; i++) {
+                    if (hits.size() == maxResults) {
+                        searchTimer.recordSince(searchStart);
+                        return new Results(Collections.unmodifiableList(hits), true, pendingAlbums);
+                    }
+                    int position = matcher.positions[i];
+                    hits.add(new Hit(album, photos.getName(position), photos.get(position),
+                            matcher.captured != null ? matcher.captured[position] : 0));
+                }
+            }
+        }
+        searchTimer.recordSince(searchStart);
+        return new Results(Collections.unmodifiableList(hits), false, pendingAlbums);
+    }
+
+    @Override
+    public void albumsChanged() {
+        indexed.keySet().removeIf(album -> !albumCatalog.containsAlbum(album));
+        scheduleUnindexed();
+    }
+
+    @Override
+    public void albumChanged(String album) {
+        schedule(album);
+    }
+
+    @Override
+    public void albumLoaded(String album) {
+        schedule(album);
+    }
+
+    /**
+     * Schedules albums that are not indexed yet, those the catalog has not loaded are indexed from its snapshot.
+     */
+    private void scheduleUnindexed() {
+        for (String album : albumCatalog.getAlbums()) {
+            if (!indexed.containsKey(album)) {
+                schedule(album);
+            }
+        }
+    }
+
+    private void schedule(String album) {
+        if (pending.add(album)) {
+            try {
+                indexer.execute(() -> index(album));
+            } catch (RejectedExecutionException e) {
+                pending.remove(album);//shutting down
+            }
+        }
+    }
+
+    private void index(String album) {
+        pending.remove(album);
+        AlbumIndex photos = albumCatalog.findLoadedAlbum(album);
+        boolean stored = false;
+        if (photos == null) {
+            photos = albumCatalog.readStoredAlbum(album);
+            stored = true;
+        }
+        if (photos == null) {
+            indexed.remove(album);//deleted, dropped or not stored, indexed once loaded
+            return;
+        }
+        Indexed previous = indexed.get(album);
+        if (previous != null && (previous.photos == photos || stored && previous.photos == null)) {
+            return;
+        }
+        long start = System.nanoTime();
+        indexed.put(album, new Indexed(stored ? null : photos, TrigramFilter.of(photos), parseAlbumDate(album),
+                photos.size()));
+        indexTimer.recordSince(start);
+    }
+
+    /**
+     * @return start and end (exclusive) in seconds of the date the album name starts with, null if it has none
+     */
+    private static long[] parseAlbumDate(String album) {
+        Matcher matcher = ALBUM_DATE.matcher(album);
+        return matcher.find() ? toPeriod(matcher) : null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the date is not <code>yyyy</code>, <code>yyyy-MM</code> or
+     * <code>yyyy-MM-dd</code>
+     */
+    private static long[] parseQueryDate(String date) {
+        Matcher matcher = QUERY_DATE.matcher(date);
+        long[] period = matcher.matches() ? toPeriod(matcher) : null;
+        if (period == null) {
+            throw new IllegalArgumentException("Malformed date " + date);
+        }
+        return period;
+    }
+
+    /**
+     * @return start and end (exclusive) in seconds of the matched year, month or day, with local times taken as UTC
+     * like capture times; null if it is not a date
+     */
+    private static long[] toPeriod(Matcher matcher) {
+        try {
+            int year = Integer.parseInt(matcher.group(1));
+            LocalDate start;
+            LocalDate end;
+            if (matcher.group(2) == null) {
+                start = LocalDate.of(year, 1, 1);
+                end = start.plusYears(1);
+            } else if (matcher.group(3) == null) {
+                start = LocalDate.of(year, Integer.parseInt(matcher.group(2)), 1);
+                end = start.plusMonths(1);
+            } else {
+                start = LocalDate.of(year, Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+                end = start.plusDays(1);
+            }
+            return new long[]{start.atStartOfDay().toEpochSecond(ZoneOffset.UTC),
+                    end.atStartOfDay().toEpochSecond(ZoneOffset.UTC)};
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+}
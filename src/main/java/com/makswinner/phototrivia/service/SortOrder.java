@@ -0,0 +1,40 @@
+package com.makswinner.phototrivia.service;
+
+import java.util.Locale;
+
+/**
+ * Orders album photos can be listed and navigated in, selected with the <code>sort</code> request parameter.
+ */
+public enum SortOrder {
+    /**
+     * File name, by code point.
+     */
+    NAME,
+    /**
+     * File modification time, oldest first.
+     */
+    MODIFIED,
+    /**
+     * EXIF original date/time, oldest first; photos and videos without one by their modification time.
+     */
+    CAPTURED;
+
+    /**
+     * @return value of the <code>sort</code> request parameter selecting this order
+     */
+    public String getParameter() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return order selected by the parameter value, null if it selects none
+     */
+    public static SortOrder of(String parameter) {
+        for (SortOrder sortOrder : values()) {
+            if (sortOrder.getParameter().equals(parameter)) {
+                return sortOrder;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,255 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Album orders other than by name, sorted in the background and kept as {@link AlbumOrder} permutations of the
+ * album index, so that requests only look them up. An album is sorted when it is first requested in such an order
+ * and again after every change, reusing the keys of its previous sort for photos whose modification time has not
+ * changed, so only new and changed photos are parsed. Until the current index is sorted albums are shown by name.
+ * Orders of the <code>albums.sort.cache.entries</code> most recently used albums are kept in memory; sort keys are
+ * stored under <code>data.path</code> after every sort and read back when their album is sorted again, so neither
+ * eviction nor a restart parses albums again.
+ */
+@Service
+public class SortService implements AlbumCatalog.Listener {
+    private static final String STORE_FILE = "sort-keys.bin";
+    private static final long MILLIS_IN_SECOND = 1000;
+
+    /**
+     * Sort keys of every photo of an album index by position, and the orders built from them.
+     */
+    private static final class Sorting {
+        private final SortStore.Keys keys;
+        private final AlbumOrder[] orders;
+
+        /**
+         * @param keys modification times in milliseconds, capture times in seconds, 0 when unknown
+         */
+        private Sorting(SortStore.Keys keys) {
+            this.keys = keys;
+            long[] modified = keys.modified;
+            long[] captured = keys.captured;
+            long[] capturedOrModified = new long[captured.length];
+            for (int i = 0; i < captured.length; i++) {
+                capturedOrModified[i] = captured[i] != 0 ? captured[i] : modified[i] / MILLIS_IN_SECOND;
+            }
+            orders = new AlbumOrder[SortOrder.values().length];
+            orders[SortOrder.NAME.ordinal()] = AlbumOrder.byName(keys.photos);
+            orders[SortOrder.MODIFIED.ordinal()] = AlbumOrder.of(keys.photos, SortOrder.MODIFIED, modified);
+            orders[SortOrder.CAPTURED.ordinal()] = AlbumOrder.of(keys.photos, SortOrder.CAPTURED, capturedOrModified);
+        }
+    }
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private MediaTypes mediaTypes;
+
+    @Value(value = "${albums.path}")
+    private String albumsPathRaw;
+
+    @Value(value = "${data.path}")
+    private String dataPathRaw;
+
+    @Value(value = "${albums.sort:name}")
+    private String defaultOrderRaw;
+
+    @Value(value = "${albums.sort.cache.entries:32}")
+    private int maxEntries;
+
+    private Map<String, Sorting> sortings;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private SortOrder defaultOrder;
+    private Path albumsPath;
+    private SortStore store;
+    private ExecutorService sorter;
+    private Metrics.Timer sortTimer;
+    private Metrics.Counter parsedPhotos;
+
+    @PostConstruct
+    private void init() {
+        defaultOrder = SortOrder.of(defaultOrderRaw);
+        if (defaultOrder == null) {
+            throw new IllegalArgumentException("Unknown albums.sort " + defaultOrderRaw);
+        }
+        albumsPath = Paths.get(albumsPathRaw);
+        sortings = new LinkedHashMap<String, Sorting>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Sorting> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        sortTimer = metrics.timer("phototrivia_sort_seconds", "Sorting an album by modification and capture time", "");
+        parsedPhotos = metrics.counter("phototrivia_sort_parsed_total",
+                "Photos whose capture time was read for sorting", "");
+        metrics.gauge("phototrivia_sort_pending", "Albums waiting to be sorted", "", pending::size);
+        sorter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "album-sorter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            store = SortStore.open(Files.createDirectories(Paths.get(dataPathRaw)).resolve(STORE_FILE));
+        } catch (IOException e) {
+            store = null;//silently swallow, albums are then parsed after every start
+        }
+        albumCatalog.addListener(this);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        sorter.shutdownNow();
+        if (store != null) {
+            try {
+                store.close(albumCatalog::containsAlbum);
+            } catch (IOException e) {
+                //silently swallow, the store is compacted on a later shutdown
+            }
+        }
+    }
+
+    public SortOrder getDefaultOrder() {
+        return defaultOrder;
+    }
+
+    /**
+     * @param parameter value of the <code>sort</code> request parameter, may be null
+     * @return order selected by the parameter, the default order if it selects none
+     */
+    public SortOrder getSortOrder(String parameter) {
+        SortOrder sortOrder = SortOrder.of(parameter);
+        return sortOrder != null ? sortOrder : defaultOrder;
+    }
+
+    /**
+     * @return photos of the album in the given order, by name while the album is being sorted
+     * @throws IllegalArgumentException if there is no such album
+     */
+    public AlbumOrder getOrder(String album, SortOrder sortOrder) {
+        AlbumIndex photos = albumCatalog.getAlbum(album);
+        if (sortOrder == SortOrder.NAME) {
+            return AlbumOrder.byName(photos);
+        }
+        Sorting sorting = getSorting(album);
+        if (sorting != null && sorting.keys.photos == photos) {
+            return sorting.orders[sortOrder.ordinal()];
+        }
+        schedule(album);
+        return AlbumOrder.byName(photos);
+    }
+
+    /**
+     * @return capture times in seconds, 0 when unknown, of the photos of <code>photos</code> by index position;
+     * null unless that index has been sorted, the array must not be changed
+     */
+    long[] getCaptureTimes(String album, AlbumIndex photos) {
+        Sorting sorting = getSorting(album);
+        return sorting != null && sorting.keys.photos == photos ? sorting.keys.captured : null;
+    }
+
+    @Override
+    public void albumsChanged() {
+        synchronized (sortings) {
+            sortings.keySet().removeIf(album -> !albumCatalog.containsAlbum(album));
+        }
+    }
+
+    @Override
+    public void albumChanged(String album) {
+        boolean sorted;
+        synchronized (sortings) {
+            sorted = sortings.containsKey(album);
+        }
+        if (sorted) {
+            schedule(album);
+        }
+    }
+
+    private Sorting getSorting(String album) {
+        synchronized (sortings) {
+            return sortings.get(album);
+        }
+    }
+
+    private void schedule(String album) {
+        if (pending.add(album)) {
+            try {
+                sorter.execute(() -> sort(album));
+            } catch (RejectedExecutionException e) {
+                pending.remove(album);//shutting down
+            }
+        }
+    }
+
+    private void sort(String album) {
+        pending.remove(album);
+        AlbumIndex photos;
+        try {
+            photos = albumCatalog.getAlbum(album);
+        } catch (IllegalArgumentException e) {
+            synchronized (sortings) {
+                sortings.remove(album);//deleted meanwhile
+            }
+            return;
+        }
+        Sorting sorting = getSorting(album);
+        if (sorting != null && sorting.keys.photos == photos) {
+            return;
+        }
+        SortStore.Keys previous = sorting != null ? sorting.keys : store != null ? store.read(album) : null;
+        long start = System.nanoTime();
+        Path directory = albumsPath.resolve(album);
+        long[] modified = new long[photos.size()];
+        long[] captured = new long[photos.size()];
+        for (int i = 0; i < photos.size(); i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            String name = photos.getName(i);
+            modified[i] = directory.resolve(name).toFile().lastModified();
+            int previousPosition = previous != null ? previous.photos.indexOfName(name) : AlbumIndex.NOT_FOUND;
+            if (previousPosition != AlbumIndex.NOT_FOUND && previous.modified[previousPosition] == modified[i]) {
+                captured[i] = previous.captured[previousPosition];
+            } else if (!mediaTypes.isVideo(name)) {
+                captured[i] = metadataService.readMetadata(album, name).getCaptureTime();
+                parsedPhotos.increment();
+            }
+        }
+        SortStore.Keys keys = new SortStore.Keys(photos, modified, captured);
+        synchronized (sortings) {
+            sortings.put(album, new Sorting(keys));
+        }
+        sortTimer.recordSince(start);
+        if (store != null) {
+            try {
+                store.write(album, keys);
+            } catch (IOException e) {
+                //silently swallow, the album is parsed again after eviction or a restart
+            }
+        }
+    }
+}
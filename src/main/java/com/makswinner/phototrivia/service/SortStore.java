@@ -0,0 +1,219 @@
+package com.makswinner.phototrivia.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Sort keys persisted between runs, so that a restart does not parse albums again. Only the position of each
+ * album's record is kept in memory, a record is read when its album is sorted for the first time in a run.
+ * Every sort appends a record that replaces the previous one of its album; the file is compacted on close.
+ * <p>
+ * Layout: magic, version, then records of an album name (UTF-8 prefixed by an unsigned short length), the length
+ * of the block and the block: the index as written by {@link AlbumIndex}, modification and capture times of its
+ * photos. Numbers are big-endian. A record cut off by a crash is dropped on open.
+ */
+final class SortStore {
+    private static final int MAGIC = 0x5054534B;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * Keys of the photos of an album index by position.
+     */
+    static final class Keys {
+        final AlbumIndex photos;
+        final long[] modified;
+        final long[] captured;
+
+        Keys(AlbumIndex photos, long[] modified, long[] captured) {
+            this.photos = photos;
+            this.modified = modified;
+            this.captured = captured;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+
+    /**
+     * Position and length of the block of each stored album.
+     */
+    private final Map<String, long[]> blocks = new HashMap<>();
+
+    private SortStore(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the store in <code>file</code>, starting an empty one if there is none or it has another format.
+     */
+    static SortStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        SortStore store = new SortStore(file, channel);
+        try {
+            store.readRecords();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void readRecords() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() < HEADER_SIZE || !readFully(header, 0)
+                || header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != VERSION) {
+            channel.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+            return;
+        }
+        long position = HEADER_SIZE;
+        ByteBuffer length = ByteBuffer.allocate(Short.BYTES);
+        ByteBuffer blockLength = ByteBuffer.allocate(Integer.BYTES);
+        while (position < channel.size()) {
+            length.clear();
+            if (!readFully(length, position)) {
+                break;
+            }
+            ByteBuffer name = ByteBuffer.allocate(Short.toUnsignedInt(length.getShort(0)));
+            blockLength.clear();
+            long block = position + Short.BYTES + name.capacity() + Integer.BYTES;
+            if (!readFully(name, position + Short.BYTES) || !readFully(blockLength, block - Integer.BYTES)
+                    || blockLength.getInt(0) < 0 || block + blockLength.getInt(0) > channel.size()) {
+                break;
+            }
+            blocks.put(new String(name.array(), StandardCharsets.UTF_8), new long[]{block, blockLength.getInt(0)});
+            position = block + blockLength.getInt(0);
+        }
+        channel.truncate(position);
+    }
+
+    /**
+     * @return keys stored for the album, null if there are none or they are damaged
+     */
+    synchronized Keys read(String album) {
+        long[] block = blocks.get(album);
+        if (block == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) block[1]);
+        try {
+            if (!readFully(buffer, block[0])) {
+                return null;
+            }
+            buffer.flip();
+            AlbumIndex photos = AlbumIndex.readFrom(buffer);
+            long[] modified = new long[photos.size()];
+            long[] captured = new long[photos.size()];
+            buffer.asLongBuffer().get(modified).get(captured);
+            return new Keys(photos, modified, captured);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            return null;//silently swallow, the album is parsed again
+        }
+    }
+
+    /**
+     * Appends the keys of the album, replacing those stored before.
+     */
+    synchronized void write(String album, Keys keys) throws IOException {
+        byte[] record = toRecord(album, keys);
+        long position = channel.size();
+        writeFully(ByteBuffer.wrap(record), position);
+        int blockOffset = Short.BYTES + album.getBytes(StandardCharsets.UTF_8).length + Integer.BYTES;
+        blocks.put(album, new long[]{position + blockOffset, record.length - blockOffset});
+    }
+
+    /**
+     * Rewrites the store with the latest record of every album that matches <code>keep</code> and closes it.
+     */
+    synchronized void close(Predicate<String> keep) throws IOException {
+        try {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel compacted = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                compacted.write(header);
+                for (Map.Entry<String, long[]> entry : blocks.entrySet()) {
+                    if (!keep.test(entry.getKey())) {
+                        continue;
+                    }
+                    byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer recordHeader = ByteBuffer.allocate(Short.BYTES + name.length + Integer.BYTES)
+                            .putShort((short) name.length).put(name).putInt((int) entry.getValue()[1]);
+                    recordHeader.flip();
+                    compacted.write(recordHeader);
+                    long position = entry.getValue()[0];
+                    long end = position + entry.getValue()[1];
+                    while (position < end) {
+                        position += channel.transferTo(position, end - position, compacted);
+                    }
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static byte[] toRecord(String album, Keys keys) throws IOException {
+        byte[] name = album.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeShort(name.length);
+        output.write(name);
+        output.writeInt(0);
+        keys.photos.writeTo(output);
+        for (long modified : keys.modified) {
+            output.writeLong(modified);
+        }
+        for (long captured : keys.captured) {
+            output.writeLong(captured);
+        }
+        byte[] record = bytes.toByteArray();
+        int blockOffset = Short.BYTES + name.length + Integer.BYTES;
+        ByteBuffer.wrap(record).putInt(blockOffset - Integer.BYTES, record.length - blockOffset);
+        return record;
+    }
+
+    /**
+     * @return false if the file ends before the buffer is full
+     */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int written = channel.write(buffer, position);
+            if (written <= 0) {
+                throw new EOFException("Nothing written to " + file);
+            }
+            position += written;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.makswinner.phototrivia.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Template parsed once into literal segments, placeholder slots and a single optional
+ * <code>%(cycle:name)...%(cycle:name)</code> loop, rendered in one pass into a presized buffer.
+ * Placeholders that are not declared as slots are kept in the output as they are.
+ */
+public final class Template {
+    private static final String PLACEHOLDER_START = "%(";
+    private static final String PLACEHOLDER_END = ")";
+    private static final String CYCLE_PREFIX = "cycle:";
+    private static final int ROW_VALUES_ESTIMATE = 64;
+
+    /**
+     * Slot declaration, usually implemented by an enum so that <code>ordinal()</code> is the value index.
+     */
+    public interface Slot {
+        String placeholder();
+        int ordinal();
+    }
+
+    /**
+     * Supplies values of the loop slots for every rendered row.
+     */
+    public interface Rows {
+        int count();
+        void fill(int row, String[] values);
+    }
+
+    private final String[] literals;
+    private final int[] slots;
+    private final Template loop;
+    private final int loopIndex;
+    private final int literalLength;
+
+    private Template(String[] literals, int[] slots, Template loop, int loopIndex) {
+        this.literals = literals;
+        this.slots = slots;
+        this.loop = loop;
+        this.loopIndex = loopIndex;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    public static Template compile(String text, Slot[] slots) {
+        Map<String, Integer> indexes = new HashMap<>();
+        for (Slot slot : slots) {
+            indexes.put(slot.placeholder(), slot.ordinal());
+        }
+        return compile(text, indexes, true);
+    }
+
+    private static Template compile(String text, Map<String, Integer> indexes, boolean allowLoop) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        Template loop = null;
+        int loopIndex = -1;
+        StringBuilder literal = new StringBuilder();
+        int position = 0;
+        while (position < text.length()) {
+            int start = text.indexOf(PLACEHOLDER_START, position);
+            int end = start < 0 ? -1 : text.indexOf(PLACEHOLDER_END, start);
+            if (end < 0) {
+                literal.append(text, position, text.length());
+                break;
+            }
+            String name = text.substring(start + PLACEHOLDER_START.length(), end);
+            literal.append(text, position, start);
+            position = end + PLACEHOLDER_END.length();
+            if (allowLoop && loop == null && name.startsWith(CYCLE_PREFIX)) {
+                String marker = PLACEHOLDER_START + name + PLACEHOLDER_END;
+                int loopEnd = text.indexOf(marker, position);
+                if (loopEnd < 0) {
+                    throw new IllegalArgumentException("Unterminated " + marker);
+                }
+                loop = compile(text.substring(position, loopEnd) + "\n", indexes, false);
+                loopIndex = slots.size();
+                literals.add(literal.toString());
+                slots.add(-1);
+                literal.setLength(0);
+                position = loopEnd + marker.length();
+            } else if (indexes.containsKey(name)) {
+                literals.add(literal.toString());
+                slots.add(indexes.get(name));
+                literal.setLength(0);
+            } else {
+                literal.append(text, start, position);
+            }
+        }
+        literals.add(literal.toString());
+        return new Template(literals.toArray(new String[0]),
+                slots.stream().mapToInt(Integer::intValue).toArray(), loop, loopIndex);
+    }
+
+    public String render(String[] values) {
+        return render(values, null);
+    }
+
+    public String render(String[] values, Rows rows) {
+        int rowCount = loop != null && rows != null ? rows.count() : 0;
+        int capacity = estimate(values) + rowCount * (loop != null ? loop.literalLength + ROW_VALUES_ESTIMATE : 0);
+        StringBuilder out = new StringBuilder(capacity);
+        try {
+            write(out, values, rows, rowCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);//never thrown by StringBuilder
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the output as it is produced, without building the whole page in memory.
+     */
+    public void render(String[] values, Rows rows, Appendable out) throws IOException {
+        write(out, values, rows, loop != null && rows != null ? rows.count() : 0);
+    }
+
+    private int estimate(String[] values) {
+        int length = literalLength;
+        for (int slot : slots) {
+            if (slot >= 0 && values[slot] != null) {
+                length += values[slot].length();
+            }
+        }
+        return length;
+    }
+
+    private void write(Appendable out, String[] values, Rows rows, int rowCount) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            out.append(literals[i]);
+            if (i == loopIndex) {
+                for (int row = 0; row < rowCount; row++) {
+                    rows.fill(row, values);
+                    loop.write(out, values, null, 0);
+                }
+            } else if (values[slots[i]] != null) {
+                out.append(values[slots[i]]);
+            }
+        }
+        out.append(literals[slots.length]);
+    }
+}
@@ -0,0 +1,170 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+
+/**
+ * Creates photo thumbnails on first request and keeps them in a size-capped disk cache,
+ * evicting the least recently used ones. Concurrent requests for the same thumbnail share a single decode.
+ * Thumbnails are cached by the modification time and size of their photo, so a replaced photo gets a new one.
+ */
+@Service
+public class ThumbnailService {
+    private static final String THUMBNAIL_FORMAT = "jpg";
+    private static final int BYTES_IN_MB = 1024 * 1024;
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private MetadataService metadataService;
+
+    @Autowired
+    private MediaExecutor mediaExecutor;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private MediaTypes mediaTypes;
+
+    @Value(value = "${albums.path}")
+    private String albumsPathRaw;
+
+    @Value(value = "${thumbnails.path}")
+    private String thumbnailsPathRaw;
+
+    @Value(value = "${thumbnails.size}")
+    private int thumbnailSize;
+
+    @Value(value = "${thumbnails.cache.size.mb}")
+    private long cacheSizeMb;
+
+    private Path albumsPath;
+    private DiskCache thumbnails;
+    private Metrics.Timer createTimer;
+
+    @PostConstruct
+    private void init() throws IOException {
+        albumsPath = Paths.get(albumsPathRaw);
+        createTimer = metrics.timer("phototrivia_thumbnail_create_seconds",
+                "Decoding, scaling and writing thumbnails", "");
+        thumbnails = new DiskCache(Paths.get(thumbnailsPathRaw), cacheSizeMb * BYTES_IN_MB,
+                metrics.cacheCounters("thumbnails"));
+        thumbnails.load();
+    }
+
+    /**
+     * @param photo raw (not encoded) photo name
+     * @return channel to read the thumbnail, to be closed by the caller, or null if there is no such album or photo,
+     * it is a video or not a readable image
+     * @throws java.util.concurrent.RejectedExecutionException when media processing is saturated
+     */
+    public FileChannel getThumbnail(String album, String photo) throws IOException {
+        if (mediaTypes.isVideo(photo) || !albumCatalog.containsAlbum(album)
+                || albumCatalog.getAlbum(album).indexOfName(photo) == AlbumIndex.NOT_FOUND) {
+            return null;
+        }
+        String version;
+        try {
+            version = DiskCache.version(albumsPath.resolve(album).resolve(photo));
+        } catch (IOException e) {
+            return null;//deleted meanwhile
+        }
+        return thumbnails.open(thumbnails.resolve(album, photo + "." + version + "." + THUMBNAIL_FORMAT),
+                temporary -> createThumbnail(album, photo, temporary));
+    }
+
+    private boolean createThumbnail(String album, String photo, File thumbnail) throws IOException {
+        int orientation = metadataService.getMetadata(album, photo).getOrientation();
+        return mediaExecutor.call(() -> {
+            long start = System.nanoTime();
+            try {
+                return createThumbnail(album, photo, orientation, thumbnail);
+            } finally {
+                createTimer.recordSince(start);
+            }
+        });
+    }
+
+    private boolean createThumbnail(String album, String photo, int orientation, File thumbnail)
+            throws IOException {
+        BufferedImage image = read(albumsPath.resolve(album).resolve(photo).toFile());
+        if (image == null) {
+            return false;
+        }
+        if (!ImageIO.write(scale(image, orientation), THUMBNAIL_FORMAT, thumbnail)) {
+            throw new IOException("No writer for " + THUMBNAIL_FORMAT);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes only every n-th pixel of big images, so that full-size originals never land on the heap.
+     */
+    private BufferedImage read(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int longestSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int subsampling = Math.max(1, longestSide / (thumbnailSize * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private BufferedImage scale(BufferedImage image, int orientation) {
+        double scale = Math.min(1.0, (double) thumbnailSize / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        boolean rotated = orientation == 6 || orientation == 8;
+        BufferedImage thumbnail = new BufferedImage(
+                rotated ? height : width, rotated ? width : height, BufferedImage.TYPE_INT_RGB);
+        AffineTransform transform = new AffineTransform();
+        if (orientation == 6) {
+            transform.translate(height, 0);
+            transform.quadrantRotate(1);
+        } else if (orientation == 8) {
+            transform.translate(0, width);
+            transform.quadrantRotate(-1);
+        } else if (orientation == 3) {
+            transform.translate(width, height);
+            transform.quadrantRotate(2);
+        }
+        transform.scale(scale, scale);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        return thumbnail;
+    }
+}
@@ -0,0 +1,86 @@
+package com.makswinner.phototrivia.service;
+
+/**
+ * Trigram signatures of the names of an {@link AlbumIndex}, one per block of {@value #BLOCK_SIZE} names, so that
+ * a search only reads the names of blocks that may contain the text. Every trigram of a name and its start, a marker
+ * followed by the first two bytes, set one of {@value #BITS} bits of its block, after folding ASCII letters to lower
+ * case; a block that misses a bit of the text cannot contain it. That takes 4 bytes per photo, a fraction of trigram
+ * postings, at the price of reading a block now and then that only seems to match.
+ */
+final class TrigramFilter {
+    static final int BLOCK_SIZE = 16;
+    private static final int BITS = 512;
+    private static final int WORDS = BITS / Long.SIZE;
+    private static final int HASH_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(BITS);
+    private static final int GOLDEN_RATIO = 0x9E3779B1;
+    private static final byte START = 0;
+
+    private final long[] words;
+
+    private TrigramFilter(long[] words) {
+        this.words = words;
+    }
+
+    static TrigramFilter of(AlbumIndex photos) {
+        long[] words = new long[(photos.size() + BLOCK_SIZE - 1) / BLOCK_SIZE * WORDS];
+        photos.forEachName(0, photos.size(), (position, bytes, offset, length) -> {
+            add(words, position / BLOCK_SIZE * WORDS, bytes, offset, length, true);
+            return true;
+        });
+        return new TrigramFilter(words);
+    }
+
+    /**
+     * @param text UTF-8 text, folded with {@link #toLowerCase(byte)}
+     * @param prefix whether the text has to start the name
+     * @return bits a block needs to possibly contain the text, none for texts shorter than a trigram
+     */
+    static long[] mask(byte[] text, boolean prefix) {
+        long[] mask = new long[WORDS];
+        add(mask, 0, text, 0, text.length, prefix);
+        return mask;
+    }
+
+    static byte toLowerCase(byte value) {
+        return value >= 'A' && value <= 'Z' ? (byte) (value + ('a' - 'A')) : value;
+    }
+
+    int blocks() {
+        return words.length / WORDS;
+    }
+
+    /**
+     * @return whether the names of the block may contain text with the given {@link #mask(byte[], boolean)}
+     */
+    boolean mayContain(int block, long[] mask) {
+        int at = block * WORDS;
+        for (int i = 0; i < WORDS; i++) {
+            if ((words[at + i] & mask[i]) != mask[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long getBytes() {
+        return (long) words.length * Long.BYTES;
+    }
+
+    private static void add(long[] words, int at, byte[] bytes, int offset, int length, boolean start) {
+        if (start && length >= 2) {
+            set(words, at, trigram(START, toLowerCase(bytes[offset]), toLowerCase(bytes[offset + 1])));
+        }
+        for (int i = offset; i + 2 < offset + length; i++) {
+            set(words, at, trigram(toLowerCase(bytes[i]), toLowerCase(bytes[i + 1]), toLowerCase(bytes[i + 2])));
+        }
+    }
+
+    private static int trigram(byte first, byte second, byte third) {
+        return (first & 0xFF) << 16 | (second & 0xFF) << 8 | (third & 0xFF);
+    }
+
+    private static void set(long[] words, int at, int trigram) {
+        int bit = (trigram * GOLDEN_RATIO) >>> HASH_SHIFT;
+        words[at + bit / Long.SIZE] |= 1L << bit;
+    }
+}
@@ -0,0 +1,255 @@
+package com.makswinner.phototrivia.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.stream.IntStream;
+
+/**
+ * Downscaled renditions of photos at the configured widths, for <code>srcset</code> on photo pages, so that a
+ * phone does not download a camera original for every slide. Renditions are created on first request, as WebP
+ * when the client accepts it and an ImageIO WebP writer is installed, otherwise as JPEG, and kept in a
+ * size-capped disk cache by the modification time and size of the original, so a replaced photo gets new ones.
+ * They keep the pixel orientation of the original, which pages rotate with CSS.
+ */
+@Service
+public class VariantService {
+    private static final String FORMAT_JPEG = "jpg";
+    private static final String FORMAT_WEBP = "webp";
+    private static final String CONTENT_TYPE_JPEG = "image/jpeg";
+    private static final String CONTENT_TYPE_WEBP = "image/webp";
+    private static final int BYTES_IN_MB = 1024 * 1024;
+
+    @Autowired
+    private AlbumCatalog albumCatalog;
+
+    @Autowired
+    private MediaExecutor mediaExecutor;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private MediaTypes mediaTypes;
+
+    @Value(value = "${albums.path}")
+    private String albumsPathRaw;
+
+    @Value(value = "${variants.widths}")
+    private String widthsRaw;
+
+    @Value(value = "${variants.path}")
+    private String variantsPathRaw;
+
+    @Value(value = "${variants.cache.size.mb}")
+    private long cacheSizeMb;
+
+    private int[] widths;
+    private boolean webp;
+    private Path albumsPath;
+    private DiskCache variants;
+    private Metrics.Timer createTimer;
+
+    @PostConstruct
+    private void init() throws IOException {
+        widths = Arrays.stream(widthsRaw.split(","))
+                .map(String::trim)
+                .filter(width -> !width.isEmpty())
+                .mapToInt(Integer::parseInt)
+                .filter(width -> width > 0)
+                .sorted()
+                .distinct()
+                .toArray();
+        webp = ImageIO.getImageWritersByFormatName(FORMAT_WEBP).hasNext();
+        albumsPath = Paths.get(albumsPathRaw);
+        createTimer = metrics.timer("phototrivia_variant_create_seconds",
+                "Decoding, scaling and writing photo variants", "");
+        variants = new DiskCache(Paths.get(variantsPathRaw), cacheSizeMb * BYTES_IN_MB,
+                metrics.cacheCounters("variants"));
+        variants.load();
+    }
+
+    /**
+     * @return configured variant widths, ascending, empty if variants are disabled
+     */
+    public int[] getWidths() {
+        return widths.clone();
+    }
+
+    /**
+     * @return whether responses depend on the <code>Accept</code> header
+     */
+    public boolean isNegotiated() {
+        return webp;
+    }
+
+    /**
+     * @param photo raw (not encoded) photo name
+     * @param accept <code>Accept</code> header of the request, may be null
+     * @return channel to read the variant, to be closed by the caller, or null if the width is not configured,
+     * the album has no such photo or it is not a readable image
+     * @throws java.util.concurrent.RejectedExecutionException when media processing is saturated
+     */
+    public FileChannel getVariant(String album, String photo, int width, String accept) throws IOException {
+        if (Arrays.binarySearch(widths, width) < 0 || mediaTypes.isVideo(photo) || !albumCatalog.containsAlbum(album)
+                || albumCatalog.getAlbum(album).indexOfName(photo) == AlbumIndex.NOT_FOUND) {
+            return null;
+        }
+        String version;
+        try {
+            version = DiskCache.version(albumsPath.resolve(album).resolve(photo));
+        } catch (IOException e) {
+            return null;//deleted meanwhile
+        }
+        String format = getFormat(accept);
+        return variants.open(variants.resolve(album, photo + "." + version + "." + width + "." + format),
+                temporary -> createVariant(album, photo, width, format, temporary));
+    }
+
+    /**
+     * Creates the variants a photo page would offer for the photo that are not cached yet, decoding the original
+     * once on the calling thread instead of the media pool; for prefetching photos that are likely viewed next.
+     *
+     * @param photo raw (not encoded) photo name of a photo in the album
+     * @param accept <code>Accept</code> header of the page request, may be null
+     * @return false if the page would show the original, because it is not wider than any variant
+     * or not a readable image
+     */
+    public boolean createVariants(String album, String photo, String accept) throws IOException {
+        if (widths.length == 0 || mediaTypes.isVideo(photo)) {
+            return false;
+        }
+        Path original = albumsPath.resolve(album).resolve(photo);
+        String prefix = photo + "." + DiskCache.version(original) + ".";
+        String format = getFormat(accept);
+        try (ImageInputStream input = ImageIO.createImageInputStream(original.toFile())) {
+            ImageReader reader = getReader(input);
+            if (reader == null) {
+                return false;
+            }
+            try {
+                int originalWidth = reader.getWidth(0);
+                int[] missing = IntStream.of(widths)
+                        .filter(width -> width < originalWidth)
+                        .filter(width -> !variants.isCached(variants.resolve(album, prefix + width + "." + format)))
+                        .toArray();
+                if (missing.length == 0) {
+                    return widths[0] < originalWidth;
+                }
+                long start = System.nanoTime();
+                BufferedImage image = decode(reader, missing[missing.length - 1]);
+                for (int width : missing) {
+                    variants.get(variants.resolve(album, prefix + width + "." + format),
+                            temporary -> write(image, width, format, temporary));
+                }
+                createTimer.recordSince(start);
+                return true;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @param accept <code>Accept</code> header of the request, may be null
+     * @return content type of the variants {@link #getVariant} returns for the request
+     */
+    public String getContentType(String accept) {
+        return FORMAT_WEBP.equals(getFormat(accept)) ? CONTENT_TYPE_WEBP : CONTENT_TYPE_JPEG;
+    }
+
+    private String getFormat(String accept) {
+        return webp && accept != null && accept.contains(CONTENT_TYPE_WEBP) ? FORMAT_WEBP : FORMAT_JPEG;
+    }
+
+    private boolean createVariant(String album, String photo, int width, String format, File variant)
+            throws IOException {
+        return mediaExecutor.call(() -> {
+            long start = System.nanoTime();
+            try {
+                BufferedImage image = read(albumsPath.resolve(album).resolve(photo).toFile(), width);
+                return image != null && write(image, width, format, variant);
+            } finally {
+                createTimer.recordSince(start);
+            }
+        });
+    }
+
+    private boolean write(BufferedImage image, int width, String format, File variant) throws IOException {
+        if (!ImageIO.write(scale(image, width), format, variant)) {
+            throw new IOException("No writer for " + format);
+        }
+        return true;
+    }
+
+    private BufferedImage read(File file, int width) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = getReader(input);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                return decode(reader, width);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return reader with the input set, to be disposed by the caller; null if the input is not a readable image
+     */
+    private static ImageReader getReader(ImageInputStream input) {
+        Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+        if (readers == null || !readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    /**
+     * Decodes only every n-th pixel, keeping at least <code>width</code> columns, so that decoding a 12 megapixel
+     * photo for a 1280 pixel variant takes about 4 MB of heap instead of 36 MB.
+     */
+    private static BufferedImage decode(ImageReader reader, int width) throws IOException {
+        int subsampling = Math.max(1, reader.getWidth(0) / width);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+    }
+
+    private BufferedImage scale(BufferedImage image, int width) {
+        if (image.getWidth() <= width && image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            return image;
+        }
+        double scale = Math.min(1.0, (double) width / image.getWidth());
+        BufferedImage variant = new BufferedImage(Math.max(1, (int) Math.round(image.getWidth() * scale)),
+                Math.max(1, (int) Math.round(image.getHeight() * scale)), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = variant.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, variant.getWidth(), variant.getHeight(), null);
+        } finally {
+            graphics.dispose();
+        }
+        return variant;
+    }
+}
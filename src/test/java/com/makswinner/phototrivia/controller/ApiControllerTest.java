@@ -0,0 +1,72 @@
+package com.makswinner.phototrivia.controller;
+
+import com.makswinner.phototrivia.service.MediaExecutor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = {"media.workers=1", "media.queue.size=1", "media.retry.after.seconds=3",
+        "albums.watch=false", "search.index=false"})
+@AutoConfigureMockMvc
+class ApiControllerTest {
+    private static final String ALBUM = "2019_Album";
+    private static final String PHOTO = "a.jpg";
+    private static final String AUTHORIZATION = "Basic " + Base64.getEncoder().encodeToString(
+            "admin:photoTrivia".getBytes(StandardCharsets.UTF_8));
+
+    static {
+        try {
+            Path photos = Files.createTempDirectory("photoTrivia").resolve("photos");
+            Files.createDirectories(photos.resolve(ALBUM));
+            Files.write(photos.resolve(ALBUM).resolve(PHOTO), new byte[]{1, 2, 3});
+            System.setProperty("albums.path", photos.toString());
+            System.setProperty("data.path", photos.resolveSibling("data").toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private MediaExecutor mediaExecutor;
+
+    @Test
+    void photoIsBusyWhenMediaPoolIsSaturated() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            mediaExecutor.submit(() -> {
+                release.await();
+                return null;
+            });
+            while (mediaExecutor.getActiveCount() == 0) {
+                Thread.sleep(10);
+            }
+            mediaExecutor.submit(() -> null);
+            assertEquals(1, mediaExecutor.getQueueDepth());
+
+            mockMvc.perform(get("/api/albums/" + ALBUM + "/" + PHOTO).header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().string(HttpHeaders.RETRY_AFTER, "3"));
+        } finally {
+            release.countDown();
+        }
+    }
+}